@@ -0,0 +1,13 @@
+package fr.polytech.mnia;
+
+/**
+ * An agent that can prune transitions of the compiled model once value
+ * bounds prove them suboptimal.
+ */
+public interface ActionEliminationAware {
+
+    /** @param actionElimination true to prune suboptimal transitions (off by default) */
+    void setActionElimination(boolean actionElimination);
+
+    boolean isActionElimination();
+}
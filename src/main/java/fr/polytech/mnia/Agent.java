@@ -10,12 +10,26 @@ import fr.polytech.mnia.Environment.ExplorationStrategy;
 public abstract class Agent {
     protected Environment env ;
     protected double gamma, teta ;
+    protected SolverMode mode = SolverMode.PROB ;
+    protected Budget budget = Budget.unlimited() ;
 
     public Agent(Environment env, double gamma, double teta){
         this.env = env ;
         this.gamma = gamma ;
         this.teta = teta ;
     }
+    public void setMode(SolverMode mode){
+        this.mode = mode ;
+    }
+    public SolverMode getMode(){
+        return this.mode ;
+    }
+    public void setBudget(Budget budget){
+        this.budget = budget ;
+    }
+    public Budget getBudget(){
+        return this.budget ;
+    }
     public abstract void learn(ExplorationStrategy strategy) ;
     public abstract Map<Transition, Double> getQValues(State s) ;
 }
@@ -2,13 +2,21 @@ package fr.polytech.mnia;
 
 import fr.polytech.mnia.Environment.Environment;
 import fr.polytech.mnia.mbrl.offline.BackwardInductionV1;
+import fr.polytech.mnia.mbrl.offline.BatchValueIteration;
 import fr.polytech.mnia.mbrl.offline.IncrementalValueIteration;
+import fr.polytech.mnia.mbrl.offline.IntervalValueIteration;
+import fr.polytech.mnia.mbrl.offline.LayeredBackwardInduction;
 import fr.polytech.mnia.mbrl.offline.ModifiedPolicyIteration;
+import fr.polytech.mnia.mbrl.offline.ParallelIncrementalValueIteration;
+import fr.polytech.mnia.mbrl.offline.ParallelPrioritizedValueIteration;
+import fr.polytech.mnia.mbrl.offline.ParallelValueIteration;
 import fr.polytech.mnia.mbrl.offline.PolicyIteration;
 import fr.polytech.mnia.mbrl.offline.PrioritizedValueIterationV1;
+import fr.polytech.mnia.mbrl.offline.TopologicalValueIteration;
 import fr.polytech.mnia.mbrl.offline.ValueIteration;
 import fr.polytech.mnia.mbrl.online.DynaQ;
 import fr.polytech.mnia.mbrl.online.DynaQPlus;
+import fr.polytech.mnia.mbrl.online.LabeledRTDP;
 
 public final class AgentFactory {
 
@@ -16,6 +24,12 @@ public final class AgentFactory {
         // util class
     }
 
+    public static Agent create(AlgorithmId id, Environment env, SolverMode mode) {
+        Agent agent = create(id, env);
+        agent.setMode(mode);
+        return agent;
+    }
+
     public static Agent create(AlgorithmId id, Environment env) {
         return switch (id) {
             case VALUE_ITERATION -> new ValueIteration(
@@ -24,6 +38,31 @@ public final class AgentFactory {
                     0.01,  // teta
                     10     // maxIterations
             );
+            case PARALLEL_VALUE_ITERATION -> new ParallelValueIteration(
+                    env,
+                    0.9,   // gamma
+                    0.01,  // teta
+                    10     // maxIterations
+            );
+            case BATCH_VALUE_ITERATION -> new BatchValueIteration(
+                    env,
+                    // discount factors solved together, e.g. -Drllib.gammas=0.5,0.9,0.99
+                    gammas(System.getProperty("rllib.gammas", "0.5,0.9,0.99")),
+                    0.01,  // teta (every configuration)
+                    1000   // maxIterations
+            );
+            case TOPOLOGICAL_VALUE_ITERATION -> new TopologicalValueIteration(
+                    env,
+                    0.9,   // gamma
+                    0.01,  // teta (inside cyclic components)
+                    1000   // maxIterations per cyclic component
+            );
+            case INTERVAL_VALUE_ITERATION -> new IntervalValueIteration(
+                    env,
+                    0.9,   // gamma
+                    0.01,  // teta (largest certified gap)
+                    1000   // maxIterations
+            );
             case POLICY_ITERATION -> new PolicyIteration(
                     env,
                     0.9,   // gamma
@@ -35,7 +74,8 @@ public final class AgentFactory {
                     0.9,   // gamma
                     0.01,  // teta
                     100,   // maxIterations
-                    5      // evalIterations
+                    5,     // evalIterations (first phase)
+                    true   // adaptiveEvaluation
             );
             case INCREMENTAL_VALUE_ITERATION -> new IncrementalValueIteration(
                     env,
@@ -44,17 +84,37 @@ public final class AgentFactory {
                     200,    // maxIterations
                     500     // updatesPerIteration 
             );
+            case PARALLEL_INCREMENTAL_VALUE_ITERATION -> new ParallelIncrementalValueIteration(
+                    env,
+                    0.9,    // gamma
+                    0.001,  // teta
+                    200,    // maxIterations
+                    500     // updatesPerIteration, shared by the worker threads
+            );
             case BACKWARD_INDUCTION -> new BackwardInductionV1(
                     env,
                     0.9,   // gamma
                     9      // horizon (Tic-Tac-Toe)
             );
+            case LAYERED_BACKWARD_INDUCTION -> new LayeredBackwardInduction(
+                    env,
+                    0.9,   // gamma
+                    9,     // horizon (Tic-Tac-Toe)
+                    // layer expression, e.g. -Drllib.layerExpression="card(square)" (BFS depth if unset)
+                    System.getProperty("rllib.layerExpression")
+            );
             case PRIORITIZED_VALUE_ITERATION -> new PrioritizedValueIterationV1(
                 env,
                 0.9,   // gamma
                 0.01,  // teta (erreur de Bellman seuil)
                 100_000 // maxUpdates (maxUpdates = k * |S| (k : 10..50)
             );
+            case PARALLEL_PRIORITIZED_VALUE_ITERATION -> new ParallelPrioritizedValueIteration(
+                env,
+                0.9,   // gamma
+                0.01,  // teta (Bellman error threshold)
+                100_000 // maxUpdates, over all worker threads
+            );
             case DYNA_Q -> new DynaQ(
                 env,
                 0.9,    // gamma
@@ -77,6 +137,23 @@ public final class AgentFactory {
                 5e-4,       // kappa (bonus Dyna-Q+)
                 1_000       // logEveryEpisodes
             );
+            case LABELED_RTDP -> new LabeledRTDP(
+                env,
+                0.9,        // gamma
+                0.01,       // teta (residual for labeling states solved)
+                100_000,    // maxTrials
+                200,        // maxTrialDepth
+                1.0         // initialValue (upper bound on V*: at most one win)
+            );
         };
     }
+
+    private static double[] gammas(String list) {
+        String[] parts = list.split(",");
+        double[] gammas = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            gammas[i] = Double.parseDouble(parts[i].trim());
+        }
+        return gammas;
+    }
 }
\ No newline at end of file
@@ -2,11 +2,19 @@ package fr.polytech.mnia;
 
 public enum AlgorithmId {
     VALUE_ITERATION,
+    PARALLEL_VALUE_ITERATION,
+    BATCH_VALUE_ITERATION,
+    TOPOLOGICAL_VALUE_ITERATION,
+    INTERVAL_VALUE_ITERATION,
     POLICY_ITERATION,
     MODIFIED_POLICY_ITERATION,
     INCREMENTAL_VALUE_ITERATION,
+    PARALLEL_INCREMENTAL_VALUE_ITERATION,
     BACKWARD_INDUCTION,
+    LAYERED_BACKWARD_INDUCTION,
     PRIORITIZED_VALUE_ITERATION,
+    PARALLEL_PRIORITIZED_VALUE_ITERATION,
     DYNA_Q,
-    DYNA_Q_PLUS
+    DYNA_Q_PLUS,
+    LABELED_RTDP
 }
\ No newline at end of file
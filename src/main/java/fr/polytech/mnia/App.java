@@ -9,6 +9,9 @@ import de.prob.statespace.Transition;
 import fr.polytech.mnia.Environment.Environment;
 import fr.polytech.mnia.Environment.ExplorationStrategy;
 import fr.polytech.mnia.Environment.RewardStrategy;
+import fr.polytech.mnia.mbrl.kernel.KernelType;
+import fr.polytech.mnia.mbrl.offline.BackwardInductionV1;
+import fr.polytech.mnia.mbrl.offline.ParallelValueIteration;
 
 public class App {
     Environment env ;
@@ -56,8 +59,20 @@ public class App {
                 rewardStrategy
         );
 
+        SolverMode solverMode = SolverMode.PROB; // default
+
+        if (args.length >= 4) {
+            try {
+                solverMode = SolverMode.valueOf(args[3]);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown solver mode '" + args[3] + "'. Using default PROB.");
+            }
+        }
+
+        System.out.println("Selected solver mode = " + solverMode);
+
         // Create agent (factory already exists)        
-        Agent agent = AgentFactory.create(algo, env);
+        Agent agent = AgentFactory.create(algo, env, solverMode);
 
         if (agent == null) {
             System.err.println("ERROR: Cannot create agent for algorithm " + algo);
@@ -76,25 +91,105 @@ public class App {
         }
 
         System.out.println("Exploration strategy = " + exploration);
+
+        // Optional exploration limits: -Drllib.maxDepth=N -Drllib.maxBreadth=N -Drllib.threads=N
+        env.setMaxDepth(Integer.getInteger("rllib.maxDepth", -1));
+        env.setMaxBreadth(Integer.getInteger("rllib.maxBreadth", -1));
+        env.setExplorationThreads(Integer.getInteger("rllib.threads",
+                Runtime.getRuntime().availableProcessors()));
+        // On-disk cache of compiled models: -Drllib.cache=true
+        env.setModelCacheEnabled(Boolean.getBoolean("rllib.cache"));
+        // Number of ProB instances for SHARDED exploration: -Drllib.probInstances=N
+        env.setProbInstances(Integer.getInteger("rllib.probInstances",
+                Math.min(4, Runtime.getRuntime().availableProcessors())));
         
+        // Symmetry reduction of the compiled model: -Drllib.symmetry=true
+        if (Boolean.getBoolean("rllib.symmetry")) {
+            env.setCanonicalizer(env.boardSymmetries());
+        }
+
+        // Bellman kernel of compiled solvers: -Drllib.kernel=SCALAR|VECTOR
+        String kernel = System.getProperty("rllib.kernel");
+        boolean compiled = solverMode == SolverMode.COMPILED || agent instanceof ParallelValueIteration;
+        if (kernel != null) {
+            if (!(agent instanceof KernelAware) || !compiled) {
+                warnIgnored("rllib.kernel", algo, solverMode,
+                        "VALUE_ITERATION (COMPILED) and PARALLEL_VALUE_ITERATION");
+            } else {
+                try {
+                    ((KernelAware) agent).setKernel(KernelType.valueOf(kernel));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Unknown kernel '" + kernel + "'. Using default SCALAR.");
+                }
+            }
+        }
+        // Action elimination in compiled VI, PI and MPI: -Drllib.actionElimination=true
+        if (Boolean.getBoolean("rllib.actionElimination")) {
+            if (!(agent instanceof ActionEliminationAware) || !compiled) {
+                warnIgnored("rllib.actionElimination", algo, solverMode,
+                        "VALUE_ITERATION, POLICY_ITERATION and MODIFIED_POLICY_ITERATION (COMPILED)");
+            } else {
+                ((ActionEliminationAware) agent).setActionElimination(true);
+            }
+        }
+        // Direct policy evaluation in PI and MPI: -Drllib.exactEvaluation=true
+        if (Boolean.getBoolean("rllib.exactEvaluation")) {
+            if (!(agent instanceof ExactEvaluationAware)) {
+                warnIgnored("rllib.exactEvaluation", algo, solverMode,
+                        "POLICY_ITERATION and MODIFIED_POLICY_ITERATION");
+            } else {
+                ((ExactEvaluationAware) agent).setExactPolicyEvaluation(true);
+            }
+        }
+        // Non-stationary policy of BACKWARD_INDUCTION (Q_h per step): -Drllib.timeIndexed=true
+        BackwardInductionV1 timeIndexed = null;
+        if (agent instanceof BackwardInductionV1 && Boolean.getBoolean("rllib.timeIndexed")) {
+            timeIndexed = (BackwardInductionV1) agent;
+            timeIndexed.setTimeIndexedPolicy(true);
+        }
+        
+        // Wall-clock budget of exploration and learning: -Drllib.budgetMs=N
+        Long budgetMs = Long.getLong("rllib.budgetMs");
+        if (budgetMs != null) {
+            agent.setBudget(Budget.ofMillis(budgetMs));
+        }
+
         agent.learn(exploration); // Run learning with exploration
 
-        System.out.println("Nb states discovered (env): " + env.getStateIds().size());
+        if (env.hasStateIds()) {
+            System.out.println("Nb states discovered (env): " + env.getStateIds().size());
+        }
+        if (env.getCompiledMdp() != null) {
+            System.out.println("Nb states in compiled model: " + env.getCompiledMdp().size());
+        }
 
-        playStepByStep(agent, env);
+        playStepByStep(agent, env, timeIndexed);
         System.exit(0);
     }
     
-    static void playStepByStep(Agent agent, TicTacToe env) {
+    /** Reports a solver option that the selected agent would not honour. */
+    private static void warnIgnored(String property, AlgorithmId algo, SolverMode mode, String supported) {
+        System.err.println("-D" + property + " is ignored by " + algo + " in " + mode
+                + " mode: it only applies to " + supported + ".");
+    }
+
+    /**
+     * @param timeIndexed the agent when it kept Q_h for every step, whose
+     *                    Q-values are then shown for the remaining steps; null otherwise
+     */
+    static void playStepByStep(Agent agent, TicTacToe env, BackwardInductionV1 timeIndexed) {
         try (Scanner scanner = new Scanner(System.in)) {
             State current = env.gState();
             System.out.println("Starting game from initial state:");
+            int step = 0;
     
             while (!current.getOutTransitions().isEmpty()) {
                 List<Transition> actions = current.getOutTransitions();
     
                 System.out.println("\nAvailable actions and Q-values:");
-                Map<Transition, Double> qForState = agent.getQValues(current);
+                Map<Transition, Double> qForState = timeIndexed == null
+                        ? agent.getQValues(current)
+                        : timeIndexed.getQValues(current, timeIndexed.getHorizon() - step);
     
                 for (int i = 0; i < actions.size(); i++) {
                     Transition action = actions.get(i);
@@ -137,6 +232,7 @@ public class App {
     
                 // Appliquer l'action
                 current = selectedAction.getDestination();
+                step++;
                 System.out.println("\nNew state: " + current.eval("square").toString());
                 env.prettyPrint(current);
             }
@@ -0,0 +1,64 @@
+package fr.polytech.mnia;
+
+import java.time.Duration;
+
+/**
+ * Wall-clock budget and cancellation token of a learning run.
+ * <p>
+ * Offline agents check their budget between iterations (or batches of
+ * updates) and, once it is exhausted, stop and keep the values computed so
+ * far. A budget is exhausted when its deadline has passed or when
+ * {@link #cancel()} has been called, possibly from another thread.
+ * The deadline of {@link #of(Duration)} counts from the creation of the
+ * budget, so it covers exploration as well as learning.
+ * </p>
+ */
+public final class Budget {
+
+    private final long deadline;
+    private final boolean limited;
+    private volatile boolean cancelled;
+
+    private Budget(long deadline, boolean limited) {
+        this.deadline = deadline;
+        this.limited = limited;
+    }
+
+    /** A budget without deadline, exhausted only when cancelled. */
+    public static Budget unlimited() {
+        return new Budget(0L, false);
+    }
+
+    /** A budget expiring after {@code duration} from now. */
+    public static Budget of(Duration duration) {
+        return new Budget(System.nanoTime() + duration.toNanos(), true);
+    }
+
+    /** A budget expiring after {@code millis} milliseconds from now. */
+    public static Budget ofMillis(long millis) {
+        return of(Duration.ofMillis(millis));
+    }
+
+    /** Stops the run at its next budget check. */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /** @return true once cancelled or past the deadline */
+    public boolean isExhausted() {
+        return this.cancelled || (this.limited && System.nanoTime() - this.deadline >= 0);
+    }
+
+    @Override
+    public String toString() {
+        if (!this.limited) {
+            return this.cancelled ? "cancelled" : "unlimited";
+        }
+        long remaining = Math.max(0L, this.deadline - System.nanoTime()) / 1_000_000L;
+        return (this.cancelled ? "cancelled, " : "") + remaining + " ms left";
+    }
+}
@@ -0,0 +1,519 @@
+package fr.polytech.mnia.Environment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntToDoubleFunction;
+
+import de.prob.statespace.State;
+import de.prob.statespace.Transition;
+
+/**
+ * Flat, ProB-free view of an explored deterministic MDP.
+ * <p>
+ * States are renumbered with dense indices {@code 0..size()-1} and the
+ * transition relation is stored in compressed sparse row (CSR) form:
+ * the outgoing transitions of state {@code s} are the edges
+ * {@code e} in {@code [offsets[s], offsets[s+1])}, leading to state
+ * {@code targets[e]} with reward {@code rewards[e]}.
+ * </p>
+ * <p>
+ * The model is built once from the explored state space
+ * (see {@link Environment#compile()}); all ProB calls, including reward
+ * evaluation, happen during construction so that solvers can run their
+ * Bellman backups on primitive arrays only.
+ * </p>
+ * <p>
+ * Destinations reached by an explored transition but not part of the
+ * explored set (e.g. with depth-limited exploration) are appended as
+ * states without outgoing transitions.
+ * </p>
+ * <p>
+ * A model can also be loaded from disk (see {@link MdpCache}). It then has
+ * no ProB identifiers or transitions from the current session; states are
+ * matched by their {@link StateFingerprint} instead.
+ * </p>
+ * With a {@link StateCanonicalizer}, the model is reduced: its states are
+ * the symmetry classes of the explored states and every member of a class
+ * is mapped to the index of the class.
+ */
+public final class CompiledMdp {
+
+    /** ProB identifier of each dense state index. */
+    private final int[] stateIds;
+
+    /** CSR row offsets, of length {@code size() + 1}. */
+    private final int[] offsets;
+
+    /** Destination state index of each edge. */
+    private final int[] targets;
+
+    /** Reward R(s,a,s') of each edge. */
+    private final double[] rewards;
+
+    /** ProB transition of each edge, used to map results back to ProB (null when loaded). */
+    private final Transition[] transitions;
+
+    /** Fingerprint of each state (only for models loaded from disk). */
+    private final long[] keys;
+
+    /** Fingerprint lookup, built on first use for models loaded from disk. */
+    private StateFingerprint fingerprint;
+    private Map<Long, Integer> indexByKey;
+
+    /** Dense state index of each ProB identifier, -1 when unknown. */
+    private final int[] indexById;
+
+    /** Whether states are symmetry classes (see {@link StateCanonicalizer}). */
+    private final boolean reduced;
+
+    /** Dense index of the initial state, -1 when not explored. */
+    private final int initialIndex;
+
+    /** Reverse CSR (predecessors), built on first use. */
+    private int[] predecessorOffsets;
+    private int[] predecessorEdges;
+    private int[] sources;
+
+    private CompiledMdp(int[] stateIds, int[] offsets, int[] targets, double[] rewards,
+                        Transition[] transitions, long[] keys, int initialIndex) {
+        this(stateIds, indexById(stateIds), offsets, targets, rewards, transitions, keys, initialIndex, false);
+    }
+
+    private CompiledMdp(int[] stateIds, int[] indexById, int[] offsets, int[] targets, double[] rewards,
+                        Transition[] transitions, long[] keys, int initialIndex, boolean reduced) {
+        this.stateIds = stateIds;
+        this.indexById = indexById;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.rewards = rewards;
+        this.transitions = transitions;
+        this.keys = keys;
+        this.initialIndex = initialIndex;
+        this.reduced = reduced;
+    }
+
+    private static int[] indexById(int[] stateIds) {
+        int maxId = -1;
+        for (int id : stateIds) {
+            maxId = Math.max(maxId, id);
+        }
+        int[] indexById = new int[maxId + 1];
+        Arrays.fill(indexById, -1);
+        for (int i = 0; i < stateIds.length; i++) {
+            if (stateIds[i] >= 0) {
+                indexById[stateIds[i]] = i;
+            }
+        }
+        return indexById;
+    }
+
+    /**
+     * Compiles the explored part of the environment's state space.
+     *
+     * @param env an environment whose state space has already been explored
+     * @return the compiled model
+     */
+    static CompiledMdp build(Environment env) {
+        Map<Integer, Integer> index = new HashMap<>();
+        List<State> states = new ArrayList<>();
+
+        for (int id : env.getStateIds().ids()) {
+            index.put(id, states.size());
+            states.add(env.gState(id));
+        }
+
+        // Unexplored destinations are appended while scanning and keep no edges
+        int nExplored = states.size();
+        List<Transition> transitions = new ArrayList<>();
+        List<Integer> targets = new ArrayList<>();
+        int[] exploredOffsets = new int[nExplored + 1];
+        for (int i = 0; i < nExplored; i++) {
+            exploredOffsets[i] = transitions.size();
+            for (Transition t : states.get(i).getOutTransitions()) {
+                int destId = idOf(t.getDestination());
+                Integer j = index.get(destId);
+                if (j == null) {
+                    j = states.size();
+                    index.put(destId, j);
+                    states.add(t.getDestination());
+                }
+                transitions.add(t);
+                targets.add(j);
+            }
+        }
+
+        StateCanonicalizer canonicalizer = env.getCanonicalizer();
+        if (canonicalizer != null) {
+            return reduce(env, canonicalizer, states, nExplored, exploredOffsets, transitions, targets);
+        }
+
+        int n = states.size();
+        int m = transitions.size();
+        int[] offsets = Arrays.copyOf(exploredOffsets, n + 1);
+        Arrays.fill(offsets, nExplored, n + 1, m);
+
+        int[] stateIds = new int[n];
+        for (int i = 0; i < n; i++) {
+            stateIds[i] = idOf(states.get(i));
+        }
+
+        int[] targetArray = new int[m];
+        double[] rewards = new double[m];
+        for (int i = 0; i < nExplored; i++) {
+            State s = states.get(i);
+            for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+                Transition t = transitions.get(e);
+                targetArray[e] = targets.get(e);
+                rewards[e] = env.reward(s, t, states.get(targetArray[e]));
+            }
+        }
+
+        State initial = env.gState();
+        Integer initialIndex = initial == null ? null : index.get(idOf(initial));
+
+        return new CompiledMdp(stateIds, offsets, targetArray, rewards,
+                               transitions.toArray(new Transition[0]), null,
+                               initialIndex == null ? -1 : initialIndex);
+    }
+
+    /**
+     * Builds the quotient of the explored states by their symmetry classes.
+     * <p>
+     * Each class is represented by its first member in exploration order,
+     * which is an explored state whenever one of the members is. The edges
+     * of a class are those of its representative, with one edge kept per
+     * destination class, and rewards are only evaluated on the kept edges.
+     * Every member's ProB identifier is mapped to the index of its class.
+     * </p>
+     */
+    private static CompiledMdp reduce(Environment env, StateCanonicalizer canonicalizer, List<State> states,
+                                      int nExplored, int[] exploredOffsets,
+                                      List<Transition> transitions, List<Integer> targets) {
+        long[] keys = canonicalizer.canonicalKeys(states);
+        Map<Long, Integer> classByKey = new HashMap<>();
+        int[] classOf = new int[states.size()];
+        List<Integer> representatives = new ArrayList<>();
+        for (int i = 0; i < states.size(); i++) {
+            Integer c = classByKey.get(keys[i]);
+            if (c == null) {
+                c = representatives.size();
+                classByKey.put(keys[i], c);
+                representatives.add(i);
+            }
+            classOf[i] = c;
+        }
+
+        int n = representatives.size();
+        int[] offsets = new int[n + 1];
+        int[] seen = new int[n];
+        Arrays.fill(seen, -1);
+        List<Integer> kept = new ArrayList<>();
+        for (int c = 0; c < n; c++) {
+            offsets[c] = kept.size();
+            int r = representatives.get(c);
+            if (r >= nExplored) {
+                continue; // unexplored class, no edges
+            }
+            for (int e = exploredOffsets[r]; e < exploredOffsets[r + 1]; e++) {
+                int target = classOf[targets.get(e)];
+                if (seen[target] != c) {
+                    seen[target] = c;
+                    kept.add(e);
+                }
+            }
+        }
+        offsets[n] = kept.size();
+
+        int m = kept.size();
+        int[] targetArray = new int[m];
+        double[] rewards = new double[m];
+        Transition[] edgeTransitions = new Transition[m];
+        for (int c = 0; c < n; c++) {
+            State s = states.get(representatives.get(c));
+            for (int e = offsets[c]; e < offsets[c + 1]; e++) {
+                int edge = kept.get(e);
+                Transition t = transitions.get(edge);
+                edgeTransitions[e] = t;
+                targetArray[e] = classOf[targets.get(edge)];
+                rewards[e] = env.reward(s, t, states.get(targets.get(edge)));
+            }
+        }
+
+        int[] stateIds = new int[n];
+        for (int c = 0; c < n; c++) {
+            stateIds[c] = idOf(states.get(representatives.get(c)));
+        }
+        int maxId = -1;
+        for (State s : states) {
+            maxId = Math.max(maxId, idOf(s));
+        }
+        int[] indexById = new int[maxId + 1];
+        Arrays.fill(indexById, -1);
+        for (int i = 0; i < states.size(); i++) {
+            int id = idOf(states.get(i));
+            if (id >= 0) {
+                indexById[id] = classOf[i];
+            }
+        }
+
+        State initial = env.gState();
+        int initialId = initial == null ? -1 : idOf(initial);
+        int initialIndex = initialId >= 0 && initialId <= maxId ? indexById[initialId] : -1;
+
+        return new CompiledMdp(stateIds, indexById, offsets, targetArray, rewards,
+                               edgeTransitions, null, initialIndex, true);
+    }
+
+    /**
+     * Rebuilds a model from arrays read back from disk.
+     *
+     * @param offsets CSR row offsets
+     * @param targets destination of each edge
+     * @param rewards reward of each edge
+     * @param keys fingerprint of each state
+     * @param initialIndex dense index of the initial state, or -1
+     * @return a model whose states are matched by fingerprint
+     */
+    static CompiledMdp fromArrays(int[] offsets, int[] targets, double[] rewards,
+                                  long[] keys, int initialIndex) {
+        int[] stateIds = new int[keys.length];
+        Arrays.fill(stateIds, -1);
+        return new CompiledMdp(stateIds, offsets, targets, rewards, null, keys, initialIndex);
+    }
+
+    private static int idOf(State s) {
+        try {
+            return Integer.parseInt(s.getId());
+        } catch (NumberFormatException e) {
+            // the ProB root state is not numbered
+            return -1;
+        }
+    }
+
+    /** @return the number of states (of symmetry classes for a reduced model) */
+    public int size() {
+        return this.stateIds.length;
+    }
+
+    /** @return the number of transitions (edges) */
+    public int transitionCount() {
+        return this.targets.length;
+    }
+
+    /**
+     * CSR row offsets. The returned array is shared and must not be modified.
+     *
+     * @return the offsets array, of length {@code size() + 1}
+     */
+    public int[] offsets() {
+        return this.offsets;
+    }
+
+    /**
+     * Destination state index of each edge. The returned array is shared
+     * and must not be modified.
+     *
+     * @return the targets array, of length {@code transitionCount()}
+     */
+    public int[] targets() {
+        return this.targets;
+    }
+
+    /**
+     * Reward of each edge. The returned array is shared and must not be
+     * modified.
+     *
+     * @return the rewards array, of length {@code transitionCount()}
+     */
+    public double[] rewards() {
+        return this.rewards;
+    }
+
+    /**
+     * Fingerprint of each state, for models loaded from disk or merged from
+     * several ProB instances.
+     *
+     * @return the fingerprints, or null for a model compiled from this session
+     */
+    long[] keys() {
+        return this.keys;
+    }
+
+    /** @return the dense index of the initial state, or -1 */
+    public int initialIndex() {
+        return this.initialIndex;
+    }
+
+    /**
+     * @return true when the states of the model are symmetry classes, see
+     *         {@link Environment#setCanonicalizer(StateCanonicalizer)}
+     */
+    public boolean isReduced() {
+        return this.reduced;
+    }
+
+    /**
+     * Returns the ProB identifier of a dense state index.
+     *
+     * @param index a dense state index
+     * @return the ProB state identifier (of the representative of the class
+     *         for a reduced model), or -1 for a model loaded from disk
+     */
+    public int stateId(int index) {
+        return this.stateIds[index];
+    }
+
+    /**
+     * Returns the ProB transition of an edge.
+     *
+     * @param edge an edge index
+     * @return the corresponding ProB transition, or null for a model loaded from disk
+     */
+    public Transition transition(int edge) {
+        return this.transitions[edge];
+    }
+
+    /**
+     * Returns the dense index of a ProB state.
+     *
+     * @param s a ProB state
+     * @return its dense index (that of its class for a reduced model), or -1
+     *         if the state is not part of the model
+     */
+    public int indexOf(State s) {
+        if (this.transitions == null) {
+            return indexByFingerprint(s);
+        }
+        int id = idOf(s);
+        if (id < 0 || id >= this.indexById.length) {
+            return -1;
+        }
+        return this.indexById[id];
+    }
+
+    private synchronized int indexByFingerprint(State s) {
+        if (this.indexByKey == null) {
+            this.fingerprint = StateFingerprint.forMachineOf(s);
+            this.indexByKey = new HashMap<>();
+            for (int i = 0; i < this.keys.length; i++) {
+                this.indexByKey.put(this.keys[i], i);
+            }
+        }
+        Integer i = this.indexByKey.get(this.fingerprint.of(s));
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * Reverse CSR offsets: the incoming edges of state {@code s} are
+     * {@code predecessorEdges()[k]} for k in
+     * {@code [predecessorOffsets()[s], predecessorOffsets()[s+1])}.
+     *
+     * @return the reverse offsets array, of length {@code size() + 1}
+     */
+    public int[] predecessorOffsets() {
+        buildPredecessors();
+        return this.predecessorOffsets;
+    }
+
+    /**
+     * Incoming edge indices grouped by destination state.
+     *
+     * @return the reverse edge array, of length {@code transitionCount()}
+     * @see #predecessorOffsets()
+     */
+    public int[] predecessorEdges() {
+        buildPredecessors();
+        return this.predecessorEdges;
+    }
+
+    /**
+     * Source state index of each edge.
+     *
+     * @return the edge sources array, of length {@code transitionCount()}
+     */
+    public int[] sources() {
+        buildPredecessors();
+        return this.sources;
+    }
+
+    private synchronized void buildPredecessors() {
+        if (this.predecessorOffsets != null) {
+            return;
+        }
+        int n = size();
+        int[] predOffsets = new int[n + 1];
+        for (int target : this.targets) {
+            predOffsets[target + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            predOffsets[i + 1] += predOffsets[i];
+        }
+        int[] fill = Arrays.copyOf(predOffsets, n);
+        int[] predEdges = new int[this.targets.length];
+        int[] edgeSources = new int[this.targets.length];
+        for (int s = 0; s < n; s++) {
+            for (int e = this.offsets[s]; e < this.offsets[s + 1]; e++) {
+                predEdges[fill[this.targets[e]]++] = e;
+                edgeSources[e] = s;
+            }
+        }
+        this.sources = edgeSources;
+        this.predecessorEdges = predEdges;
+        this.predecessorOffsets = predOffsets;
+    }
+
+    /**
+     * Maps per-edge values (typically Q-values) back to the ProB
+     * transitions of a state.
+     *
+     * @param s a ProB state
+     * @param perEdge an array indexed by edge
+     * @return the values of the outgoing transitions of s, in CSR order
+     */
+    public Map<Transition, Double> valuesOf(State s, double[] perEdge) {
+        if (perEdge == null) {
+            return Collections.emptyMap();
+        }
+        return valuesOf(s, e -> perEdge[e]);
+    }
+
+    /**
+     * Maps per-edge values given by a function back to the ProB transitions
+     * of a state, e.g. for values stored in another primitive type.
+     *
+     * @param s a ProB state
+     * @param perEdge the value of each edge index
+     * @return the values of the outgoing transitions of s, in CSR order (in
+     *         the order of the transitions of s for a loaded or reduced model)
+     */
+    public Map<Transition, Double> valuesOf(State s, IntToDoubleFunction perEdge) {
+        int i = indexOf(s);
+        if (i < 0) {
+            return Collections.emptyMap();
+        }
+        Map<Transition, Double> values = new LinkedHashMap<>();
+        if (this.transitions != null && !this.reduced) {
+            for (int e = this.offsets[i]; e < this.offsets[i + 1]; e++) {
+                values.put(this.transitions[e], perEdge.applyAsDouble(e));
+            }
+            return values;
+        }
+        // Loaded from disk or reduced: match live transitions by their
+        // destination (class), s need not be the representative
+        for (Transition t : s.getOutTransitions()) {
+            int j = indexOf(t.getDestination());
+            for (int e = this.offsets[i]; e < this.offsets[i + 1]; e++) {
+                if (this.targets[e] == j) {
+                    values.put(t, perEdge.applyAsDouble(e));
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -1,11 +1,29 @@
 package fr.polytech.mnia.Environment;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.function.Consumer;
 
+import de.prob.animator.command.GetStatesFromPredicate;
+import de.prob.animator.domainobjects.AbstractEvalResult;
+import de.prob.animator.domainobjects.FormulaExpand;
 import de.prob.animator.domainobjects.IEvalElement;
 import de.prob.check.ConsistencyChecker;
 import de.prob.check.IModelCheckListener;
@@ -30,6 +48,9 @@ import de.prob.statespace.Transition;
  */
 public abstract class Environment {
 
+    /** Number of states (or transitions) sent to ProB per batched call. */
+    private static final int EVAL_BATCH_SIZE = 1000;
+
     /** ProB animator used to manage the state space. */
     private MyProb animator = MyProb.INJECTOR.getInstance(MyProb.class);
 
@@ -40,23 +61,70 @@ public abstract class Environment {
     private State state;
 
     /** Set of discovered state IDs during exploration. */
-    private Set<Integer> stateIds;
+    private StateIdSet stateIds;
+
+    /** Whether the last exploration was SHARDED, whose states are not all in this ProB instance. */
+    private boolean sharded;
 
     private IEvalElement rewardFormula ;
 
+    /** Parsed value of the reward formula for each explored state id (NaN when unknown). */
+    private volatile double[] rewardTable = new double[0];
+
+    /** Compiled view of the explored state space, built on demand. */
+    private CompiledMdp compiled;
+
+    /** Reward strategy of the subclass, part of the compiled model cache key (may be null). */
+    private RewardStrategy rewardStrategy;
+
+    /** Symmetry reduction of compiled models (null for none). */
+    private StateCanonicalizer canonicalizer;
+
+    /**
+     * Whether compiled models are read from and written to the {@link MdpCache}.
+     * Off by default: rewards computed in Java are not part of the cache key.
+     */
+    private boolean modelCacheEnabled = false;
+
+    /** Exploration limits for RECURSIVE and FRONTIER (-1 for unlimited). */
+    private int maxDepth = -1;
+    private int maxBreadth = -1;
+
+    /** Number of worker threads expanding the frontier (FRONTIER). */
+    private int explorationThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Resource path of the loaded machine, reloaded by additional ProB instances. */
+    private final String machinePath;
+
+    /** Number of ProB instances used by SHARDED exploration, including this one. */
+    private int probInstances = Math.min(4, Runtime.getRuntime().availableProcessors());
+
     /**
      * Constructs the environment from a given B machine file path.
      *
      * @param filePath the path to the .mch file to load
      */
     public Environment(String filePath) {
+        this.machinePath = filePath;
         try {
             animator.load(filePath);
         } catch (Exception e) {
             e.printStackTrace();
         }
         this.initial = animator.getStateSpace().getRoot();
-        this.stateIds = new HashSet<>();  
+        this.stateIds = new StateIdSet();
+    }
+
+    /**
+     * Constructs the environment from a given B machine file path and
+     * records the reward strategy, so that compiled models can be cached.
+     *
+     * @param filePath the path to the .mch file to load
+     * @param rewardStrategy the reward strategy used by {@link #reward}
+     */
+    public Environment(String filePath, RewardStrategy rewardStrategy) {
+        this(filePath);
+        this.rewardStrategy = rewardStrategy;
     }
 
     public void addStateID(Integer id){
@@ -67,8 +135,111 @@ public abstract class Environment {
         this.animator.getStateSpace().subscribe(null,Collections.singleton(rewardFormula)) ;
     }
 
-    public Double evalFormulas(State s){
-        return Double.parseDouble(s.getValues().get(this.rewardFormula).toString().replaceAll("[\\{\\}]", ""));
+    /**
+     * Returns the value of the registered reward formula in a state.
+     * After exploration this is a lookup in a table filled once for all
+     * explored states; other states are evaluated through ProB.
+     *
+     * @param s the state
+     * @return the reward associated with s
+     */
+    public double evalFormulas(State s){
+        double[] table = this.rewardTable;
+        int id = this.localId(s);
+        if (id >= 0 && id < table.length && !Double.isNaN(table[id])) {
+            return table[id];
+        }
+        AbstractEvalResult value = s.getValues().get(this.rewardFormula);
+        return parseReward(value != null ? value : s.eval(this.rewardFormula));
+    }
+
+    private static double parseReward(AbstractEvalResult value){
+        return Double.parseDouble(value.toString().replaceAll("[\\{\\}]", ""));
+    }
+
+    /**
+     * Evaluates the registered reward formula on all explored states in one
+     * batched pass and stores the parsed values in {@link #rewardTable}.
+     */
+    private void tabulateRewardFormula(){
+        AbstractEvalResult[] values =
+            this.evaluateOnExploredStates(Collections.singletonList(this.rewardFormula))[0];
+        double[] table = new double[values.length];
+        for (int id = 0; id < values.length; id++) {
+            table[id] = Double.NaN;
+            if (values[id] == null) continue;
+            try {
+                table[id] = parseReward(values[id]);
+            } catch (NumberFormatException e) {
+                // left to evalFormulas, which reports the failure in context
+            }
+        }
+        this.rewardTable = table;
+    }
+
+    /**
+     * Adds the values of the registered reward formula in the given states
+     * to {@link #rewardTable}, keeping the values already tabulated.
+     */
+    private void tabulateRewardFormula(List<State> states){
+        AbstractEvalResult[] values =
+            this.evaluateOnStates(states, Collections.singletonList(this.rewardFormula))[0];
+        int maxId = -1;
+        for (State s : states) {
+            maxId = Math.max(maxId, this.localId(s));
+        }
+        double[] previous = this.rewardTable;
+        double[] table = Arrays.copyOf(previous, Math.max(previous.length, maxId + 1));
+        Arrays.fill(table, previous.length, table.length, Double.NaN);
+        for (int i = 0; i < values.length; i++) {
+            int id = this.localId(states.get(i));
+            if (id < 0 || values[i] == null) continue;
+            try {
+                table[id] = parseReward(values[i]);
+            } catch (NumberFormatException e) {
+                // left to evalFormulas, which reports the failure in context
+            }
+        }
+        this.rewardTable = table;
+    }
+
+    /**
+     * Returns the reward of a transition if it is known without querying
+     * ProB, i.e. from the tables filled once states have been explored.
+     * Learners running during a streaming exploration use it to leave the
+     * ProB instance to the exploration.
+     *
+     * @param s the current state
+     * @param a the transition taken
+     * @param sPrime the resulting state after the transition
+     * @return the reward, or NaN if it is not tabulated yet
+     */
+    public double knownReward(State s, Transition a, State sPrime) {
+        if (this.rewardFormula == null) {
+            return Double.NaN;
+        }
+        double[] table = this.rewardTable;
+        int id = this.localId(sPrime);
+        return id >= 0 && id < table.length ? table[id] : Double.NaN;
+    }
+
+    /**
+     * Returns the ProB identifier of a state of this environment's own ProB
+     * instance, for lookups in tables indexed by state id.
+     *
+     * @param s a state
+     * @return its numeric id, or -1 for the root state or for a state of
+     *         another ProB instance (see {@link MyProbPool})
+     */
+    protected int localId(State s) {
+        if (s.getStateSpace() != this.animator.getStateSpace()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(s.getId());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     /**
@@ -89,14 +260,28 @@ public abstract class Environment {
     }
 
     /**
-     * Returns the set of explored state IDs.
+     * Returns the set of explored state IDs. Sweeps over all states should
+     * iterate {@link StateIdSet#ids()}, which avoids boxing.
      *
      * @return a set of state IDs
+     * @throws IllegalStateException after a SHARDED exploration (see {@link #hasStateIds()})
      */
-    public Set<Integer> getStateIds() {
+    public StateIdSet getStateIds() {
+        if (this.sharded) {
+            throw new IllegalStateException(
+                "SHARDED exploration spreads states over several ProB instances: use the compiled model");
+        }
         return this.stateIds;
     }
 
+    /**
+     * @return false after a SHARDED exploration, whose states are only known
+     *         through the compiled model, true otherwise
+     */
+    public boolean hasStateIds() {
+        return !this.sharded;
+    }
+
     /**
      * Retrieves a state object by its ID.
      *
@@ -122,6 +307,8 @@ public abstract class Environment {
      * @param strategy the exploration strategy to use
      */
     public void explore(ExplorationStrategy eStrategy) {
+        this.compiled = null;
+        this.sharded = false;
         System.out.println("Start exploration");
         long startTime = System.nanoTime();       
 
@@ -130,16 +317,480 @@ public abstract class Environment {
                 this.modelCheck();
                 break;
             case RECURSIVE:
-                this.recursive(this.initial, new HashSet<>(), -1, -1);
+                this.recursive(this.initial, new HashSet<>(), this.maxDepth, this.maxBreadth);
+                break;
+            case FRONTIER:
+                this.frontier(this.maxDepth, this.maxBreadth, null);
+                break;
+            case SHARDED:
+                // Sharded states live in other ProB instances: agents querying
+                // ProB directly explore this instance level by level instead
+                System.out.println("SHARDED exploration requires the COMPILED solver mode, using FRONTIER");
+                this.frontier(this.maxDepth, this.maxBreadth, null);
                 break;
             case NONE:
                 break;
         }
 
+        if (this.rewardFormula != null) {
+            this.tabulateRewardFormula();
+        }
+        this.onExplored();
+
         double duration = (System.nanoTime() - startTime) / 1_000_000_000.0;
         System.out.println("\nEnd of exploration " + this.stateIds.size() + " | Exploration time: " + duration + " seconds");
     }
 
+    /**
+     * Explores the state space breadth-first (as FRONTIER) on a background
+     * thread and publishes each expanded level as soon as it is known, so
+     * that learning can start before the exploration is over.
+     * <p>
+     * The subscriber is completed once the whole exploration has finished;
+     * {@link #getStateIds()} must not be used before. {@link ExplorationStream}
+     * buffers the batches for an agent that polls them between its own
+     * updates. The rewards of each level are tabulated by
+     * {@link #onExploredBatch} before it is published (see
+     * {@link #knownReward}); since every explored state belongs to a level,
+     * {@link #onExplored()} is not called.
+     * </p>
+     *
+     * @param subscriber receives the {@link ExplorationBatch}es, in depth order
+     */
+    public void exploreAsync(Flow.Subscriber<? super ExplorationBatch> subscriber) {
+        this.compiled = null;
+        this.sharded = false;
+        SubmissionPublisher<ExplorationBatch> publisher = new SubmissionPublisher<>();
+        publisher.subscribe(subscriber);
+
+        Thread explorer = new Thread(() -> {
+            System.out.println("Start exploration");
+            long startTime = System.nanoTime();
+            try {
+                this.frontier(this.maxDepth, this.maxBreadth, batch -> {
+                    if (this.rewardFormula != null) {
+                        this.tabulateRewardFormula(batch.getStates());
+                    }
+                    this.onExploredBatch(batch);
+                    publisher.submit(batch);
+                });
+
+                double duration = (System.nanoTime() - startTime) / 1_000_000_000.0;
+                System.out.println("\nEnd of exploration " + this.stateIds.size() + " | Exploration time: " + duration + " seconds");
+                publisher.close();
+            } catch (RuntimeException e) {
+                publisher.closeExceptionally(e);
+            }
+        }, "exploration");
+        explorer.setDaemon(true);
+        explorer.start();
+    }
+
+    /**
+     * Called at the end of {@link #explore(ExplorationStrategy)}, once the set of
+     * explored states is known. Subclasses can override it to precompute
+     * per-state data (e.g. reward tables) with batched ProB evaluations.
+     * Streaming explorations call {@link #onExploredBatch} for each level instead.
+     */
+    protected void onExplored() {
+        // nothing by default
+    }
+
+    /**
+     * Called by {@link #exploreAsync(Flow.Subscriber)} for each explored
+     * level, on the exploration thread and before the level is published,
+     * while the ProB instance is not expanding states. Subclasses can
+     * override it to tabulate the rewards of the level, so that
+     * {@link #knownReward} answers for it during the exploration.
+     *
+     * @param batch the explored level
+     */
+    protected void onExploredBatch(ExplorationBatch batch) {
+        // nothing by default
+    }
+
+    /**
+     * Parses a formula in the context of the loaded machine.
+     *
+     * @param formula a B expression or predicate
+     * @return the parsed formula
+     */
+    protected IEvalElement parseFormula(String formula) {
+        return this.animator.getStateSpace().getModel().parseFormula(formula);
+    }
+
+    /**
+     * Returns the outgoing transitions of every explored state, with their
+     * parameter and return values fetched from ProB in a few batched calls.
+     *
+     * @return the transitions leaving explored states
+     */
+    protected List<Transition> exploredTransitions() {
+        List<Transition> transitions = new ArrayList<>();
+        for (int id : this.getStateIds().ids()) {
+            transitions.addAll(this.gState(id).getOutTransitions());
+        }
+        this.evaluateTransitions(transitions);
+        return transitions;
+    }
+
+    /**
+     * Fetches the parameter and return values of transitions from ProB in
+     * batches of {@link #EVAL_BATCH_SIZE}.
+     *
+     * @param transitions transitions of one ProB instance, on which they are evaluated
+     */
+    protected void evaluateTransitions(List<Transition> transitions) {
+        for (int from = 0; from < transitions.size(); from += EVAL_BATCH_SIZE) {
+            List<Transition> batch = transitions.subList(from, Math.min(from + EVAL_BATCH_SIZE, transitions.size()));
+            batch.get(0).getSource().getStateSpace().evaluateTransitions(batch, FormulaExpand.EXPAND);
+        }
+    }
+
+    /**
+     * Evaluates formulas on every explored state, sending the states to ProB
+     * in a few large batches instead of one round-trip per state and formula.
+     *
+     * @param formulas the formulas to evaluate
+     * @return {@code results[f][id]}, the value of formula f in the state with
+     *         ProB identifier id (null for states that were not explored)
+     */
+    protected AbstractEvalResult[][] evaluateOnExploredStates(List<IEvalElement> formulas) {
+        StateIdSet ids = this.getStateIds();
+        List<State> states = new ArrayList<>(ids.size());
+        for (int id : ids.ids()) {
+            states.add(this.gState(id));
+        }
+
+        AbstractEvalResult[][] values = this.evaluateOnStates(states, formulas);
+        AbstractEvalResult[][] results = new AbstractEvalResult[formulas.size()][ids.maxId() + 1];
+        for (int i = 0; i < states.size(); i++) {
+            int id = Integer.parseInt(states.get(i).getId());
+            for (int f = 0; f < formulas.size(); f++) {
+                results[f][id] = values[f][i];
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Evaluates formulas on the given states, in batches of
+     * {@link #EVAL_BATCH_SIZE} states.
+     *
+     * @param states states of one ProB instance, on which they are evaluated
+     * @param formulas the formulas to evaluate
+     * @return {@code results[f][i]}, the value of formula f in {@code states.get(i)}
+     *         (null when ProB returned no value)
+     */
+    protected AbstractEvalResult[][] evaluateOnStates(List<State> states, List<IEvalElement> formulas) {
+        AbstractEvalResult[][] results = new AbstractEvalResult[formulas.size()][states.size()];
+        for (int from = 0; from < states.size(); from += EVAL_BATCH_SIZE) {
+            List<State> batch = states.subList(from, Math.min(from + EVAL_BATCH_SIZE, states.size()));
+            Map<State, Map<IEvalElement, AbstractEvalResult>> values =
+                    batch.get(0).getStateSpace().evaluateForGivenStates(batch, formulas);
+            for (int i = 0; i < batch.size(); i++) {
+                Map<IEvalElement, AbstractEvalResult> stateValues = values.get(batch.get(i));
+                if (stateValues == null) continue;
+                for (int f = 0; f < formulas.size(); f++) {
+                    results[f][from + i] = stateValues.get(formulas.get(f));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Computes the rewards of the given transitions with batched ProB calls
+     * on the instance they belong to. SHARDED exploration uses it once per
+     * instance, for transitions of instances whose states are not in the
+     * tables filled by {@link #onExplored()}.
+     * <p>
+     * By default the registered reward formula is evaluated on the
+     * destinations; without one, {@link #reward} is called for each
+     * transition. Subclasses that tabulate their rewards should override it
+     * with the same batched evaluations.
+     * </p>
+     *
+     * @param transitions transitions of one ProB instance
+     * @return the reward of each transition, in order
+     */
+    protected double[] rewardsOf(List<Transition> transitions) {
+        double[] rewards = new double[transitions.size()];
+        AbstractEvalResult[] values = null;
+        int[] index = null;
+        if (this.rewardFormula != null) {
+            List<State> targets = new ArrayList<>();
+            index = destinationIndex(transitions, targets);
+            values = this.evaluateOnStates(targets, Collections.singletonList(this.rewardFormula))[0];
+        }
+        for (int i = 0; i < rewards.length; i++) {
+            Transition t = transitions.get(i);
+            rewards[i] = Double.NaN;
+            if (values != null && values[index[i]] != null) {
+                try {
+                    rewards[i] = parseReward(values[index[i]]);
+                } catch (NumberFormatException e) {
+                    // left to reward, which reports the failure in context
+                }
+            }
+            if (Double.isNaN(rewards[i])) {
+                rewards[i] = this.reward(t.getSource(), t, t.getDestination());
+            }
+        }
+        return rewards;
+    }
+
+    /**
+     * Collects the distinct destinations of transitions, so that each state
+     * is sent to ProB once.
+     *
+     * @param transitions the transitions
+     * @param destinations receives the distinct destinations
+     * @return for each transition, the position of its destination in {@code destinations}
+     */
+    protected static int[] destinationIndex(List<Transition> transitions, List<State> destinations) {
+        Map<State, Integer> positions = new HashMap<>();
+        int[] index = new int[transitions.size()];
+        for (int i = 0; i < index.length; i++) {
+            State sPrime = transitions.get(i).getDestination();
+            Integer position = positions.putIfAbsent(sPrime, destinations.size());
+            if (position == null) {
+                position = destinations.size();
+                destinations.add(sPrime);
+            }
+            index[i] = position;
+        }
+        return index;
+    }
+
+    /**
+     * Evaluates a natural-number expression on every explored state, e.g. a
+     * step counter such as {@code card(square)} used to stratify the state
+     * space into layers.
+     *
+     * @param expression a B expression of the loaded machine
+     * @return its value for each ProB state id, -1 for states that were not
+     *         explored or where the value is not a natural number
+     * @throws IllegalStateException after a SHARDED exploration (see {@link #hasStateIds()})
+     */
+    public int[] layersOf(String expression) {
+        AbstractEvalResult[] values =
+            this.evaluateOnExploredStates(Collections.singletonList(this.parseFormula(expression)))[0];
+        int[] layers = new int[values.length];
+        for (int id = 0; id < values.length; id++) {
+            layers[id] = -1;
+            if (values[id] == null) continue;
+            try {
+                layers[id] = Math.max(-1, Integer.parseInt(values[id].toString().trim()));
+            } catch (NumberFormatException e) {
+                // not an integer in this state
+            }
+        }
+        return layers;
+    }
+
+    /**
+     * Compiles the explored state space into a {@link CompiledMdp}.
+     * The model is built once after {@link #explore(ExplorationStrategy)}
+     * and shared by subsequent calls.
+     *
+     * @return the compiled model of the explored states
+     */
+    public CompiledMdp compile() {
+        if (this.compiled == null) {
+            long startTime = System.nanoTime();
+            this.compiled = CompiledMdp.build(this);
+            double duration = (System.nanoTime() - startTime) / 1_000_000_000.0;
+            System.out.println("End of compilation " + this.compiled.size()
+                    + (this.compiled.isReduced() ? " symmetry classes of " + this.stateIds.size() + " explored" : "")
+                    + " states, " + this.compiled.transitionCount() + " transitions | Compilation time: "
+                    + duration + " seconds");
+        }
+        return this.compiled;
+    }
+
+    /**
+     * Returns the compiled model for the given exploration strategy.
+     * <p>
+     * When the model cache is enabled, a model compiled in a previous run
+     * for the same machine, reward strategy and exploration strategy is
+     * memory-mapped from disk and ProB exploration is skipped entirely.
+     * Otherwise the state space is explored and compiled, and the result is
+     * written to the cache for later runs.
+     * </p>
+     *
+     * @param eStrategy the exploration strategy used to build the model
+     * @return the compiled model
+     */
+    public CompiledMdp compiledModel(ExplorationStrategy eStrategy) {
+        Path cacheFile = cacheFileFor(eStrategy);
+        if (cacheFile != null && Files.exists(cacheFile)) {
+            System.out.println("Start exploration");
+            long startTime = System.nanoTime();
+            try {
+                this.compiled = MdpCache.load(cacheFile);
+                double duration = (System.nanoTime() - startTime) / 1_000_000_000.0;
+                System.out.println("Loaded compiled model from " + cacheFile);
+                System.out.println("\nEnd of exploration " + this.compiled.size() + " | Exploration time: " + duration + " seconds");
+                return this.compiled;
+            } catch (IOException e) {
+                System.err.println("Cannot read model cache " + cacheFile + ": " + e.getMessage());
+            }
+        }
+
+        CompiledMdp mdp;
+        long[] keys = null;
+        if (eStrategy == ExplorationStrategy.SHARDED) {
+            if (this.canonicalizer != null) {
+                System.out.println("Symmetry reduction is not applied to SHARDED exploration");
+            }
+            mdp = this.exploreSharded();
+            keys = mdp.keys();
+        } else {
+            this.explore(eStrategy);
+            mdp = this.compile();
+        }
+
+        if (cacheFile != null) {
+            try {
+                if (keys == null) {
+                    List<State> states = new ArrayList<>(mdp.size());
+                    for (int i = 0; i < mdp.size(); i++) {
+                        states.add(this.gState(mdp.stateId(i)));
+                    }
+                    keys = states.isEmpty()
+                            ? new long[0]
+                            : StateFingerprint.forMachineOf(states.get(0)).ofAll(states);
+                }
+                MdpCache.store(cacheFile, mdp, keys);
+                System.out.println("Stored compiled model in " + cacheFile);
+            } catch (IOException e) {
+                System.err.println("Cannot write model cache " + cacheFile + ": " + e.getMessage());
+            }
+        }
+        return mdp;
+    }
+
+    /**
+     * Explores the state space with {@link #probInstances} ProB instances
+     * (this one plus a temporary {@link MyProbPool}) and compiles the merged
+     * result, evaluating rewards on the instance that expanded each state.
+     * The explored states are then only known through the compiled model:
+     * {@link #getStateIds()} fails until the next exploration.
+     */
+    private CompiledMdp exploreSharded() {
+        System.out.println("Start exploration");
+        long startTime = System.nanoTime();
+        this.stateIds = new StateIdSet();
+        this.sharded = true;
+
+        try (MyProbPool pool = new MyProbPool(this.probInstances - 1)) {
+            pool.load(this.machinePath);
+            this.compiled = new ShardedExploration(this, pool, this.maxDepth, this.maxBreadth).run(this.state);
+        } catch (Exception e) {
+            throw new IllegalStateException("Sharded exploration failed", e);
+        }
+
+        double duration = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("\nEnd of exploration " + this.compiled.size() + " | Exploration time: " + duration + " seconds");
+        return this.compiled;
+    }
+
+    private Path cacheFileFor(ExplorationStrategy eStrategy) {
+        Path machineFile = this.animator.getMachineFile();
+        // Reduced models map live states to classes, which the cache cannot restore
+        if (!this.modelCacheEnabled || this.rewardStrategy == null || machineFile == null
+                || eStrategy == ExplorationStrategy.NONE || this.canonicalizer != null) {
+            return null;
+        }
+        try {
+            return MdpCache.fileFor(machineFile, this.getClass().getName() + "/" + this.rewardStrategy
+                    + "/" + eStrategy + "/" + this.maxDepth + "/" + this.maxBreadth);
+        } catch (IOException e) {
+            System.err.println("Cannot hash machine " + machineFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Enables or disables the on-disk cache of compiled models.
+     * <p>
+     * The cache key covers the machine files, the environment class, the
+     * reward and exploration strategies and the exploration limits, but not
+     * the reward code itself: after changing a reward computed in Java (or
+     * a reward formula registered by the subclass), delete the cache.
+     * </p>
+     *
+     * @param enabled true to read and write the cache (off by default)
+     */
+    public void setModelCacheEnabled(boolean enabled) {
+        this.modelCacheEnabled = enabled;
+    }
+
+    /**
+     * Sets the symmetry reduction of compiled models: the states of
+     * {@link #compile()} become the classes of {@code canonicalizer}, so that
+     * compiled solvers store and back up one value per class. Models are not
+     * cached while a canonicalizer is set.
+     *
+     * @param canonicalizer the canonical key of each state, or null for none (the default)
+     */
+    public void setCanonicalizer(StateCanonicalizer canonicalizer) {
+        this.canonicalizer = canonicalizer;
+        this.compiled = null;
+    }
+
+    /** @return the symmetry reduction of compiled models, or null */
+    public StateCanonicalizer getCanonicalizer() {
+        return this.canonicalizer;
+    }
+
+    /**
+     * Limits the depth of RECURSIVE and FRONTIER explorations.
+     *
+     * @param maxDepth maximum distance from the initial state (-1 for unlimited)
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Limits the number of transitions followed from each state by RECURSIVE
+     * and FRONTIER explorations.
+     *
+     * @param maxBreadth maximum number of children per state (-1 for unlimited)
+     */
+    public void setMaxBreadth(int maxBreadth) {
+        this.maxBreadth = maxBreadth;
+    }
+
+    /**
+     * Sets the number of worker threads used by FRONTIER exploration.
+     *
+     * @param threads number of threads (at least 1)
+     */
+    public void setExplorationThreads(int threads) {
+        this.explorationThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Sets the number of ProB instances used by SHARDED exploration.
+     *
+     * @param instances number of instances, including this environment's own (at least 1)
+     */
+    public void setProbInstances(int instances) {
+        this.probInstances = Math.max(1, instances);
+    }
+
+    /**
+     * Returns the last compiled model, if any.
+     *
+     * @return the compiled model, or null if none was built or loaded
+     */
+    public CompiledMdp getCompiledMdp() {
+        return this.compiled;
+    }
+
     /**
      * Recursively explores the state space from a given state.
      * Depth and breadth can be limited by setting maxDepth or maxBreadth.
@@ -165,12 +816,95 @@ public abstract class Environment {
         }
     }
 
+    /**
+     * Explores the state space breadth-first, one level at a time.
+     * The successors of the states of a level are computed by a pool of
+     * worker threads; duplicates are filtered with a bit set of state ids.
+     * Unlike {@link #recursive}, the call stack does not grow with the
+     * length of the paths.
+     *
+     * @param maxDepth maximum depth allowed (-1 for unlimited)
+     * @param maxBreadth maximum number of children per state (-1 for unlimited)
+     * @param listener receives each level once it has been expanded (may be null)
+     * @throws CancellationException if the thread is interrupted before the
+     *         exploration is over (the interrupt flag is restored)
+     */
+    private void frontier(int maxDepth, int maxBreadth, Consumer<ExplorationBatch> listener) {
+        BitSet visited = new BitSet();
+        List<State> level = new ArrayList<>();
+        int initialId = Integer.parseInt(this.initial.getId());
+        visited.set(initialId);
+        this.stateIds.add(initialId);
+        level.add(this.initial);
+
+        ExecutorService workers = Executors.newFixedThreadPool(this.explorationThreads);
+        try {
+            int depth = 0;
+            while (!level.isEmpty() && (maxDepth == -1 || depth < maxDepth)) {
+                // Expand the level in chunks, a few per worker to balance the load
+                int chunk = Math.max(1, level.size() / (4 * this.explorationThreads));
+                List<Future<List<Transition>>> expansions = new ArrayList<>();
+                for (int from = 0; from < level.size(); from += chunk) {
+                    List<State> part = level.subList(from, Math.min(from + chunk, level.size()));
+                    expansions.add(workers.submit(() -> outTransitions(part, maxBreadth)));
+                }
+
+                List<State> next = new ArrayList<>();
+                List<Transition> transitions = new ArrayList<>();
+                for (Future<List<Transition>> expansion : expansions) {
+                    for (Transition t : expansion.get()) {
+                        transitions.add(t);
+                        State sPrime = t.getDestination();
+                        int id = Integer.parseInt(sPrime.getId());
+                        if (!visited.get(id)) {
+                            visited.set(id);
+                            this.stateIds.add(id);
+                            next.add(sPrime);
+                        }
+                    }
+                }
+                if (listener != null) {
+                    listener.accept(new ExplorationBatch(depth, level, transitions));
+                }
+                level = next;
+                depth++;
+                System.out.print(".");
+            }
+            if (listener != null && !level.isEmpty()) {
+                // States at the depth limit are part of the model but not expanded
+                listener.accept(new ExplorationBatch(depth, level, Collections.emptyList()));
+            }
+        } catch (InterruptedException e) {
+            // A truncated state space must not be taken for a complete one
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Frontier exploration interrupted");
+            cancelled.initCause(e);
+            throw cancelled;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Frontier exploration failed", e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private static List<Transition> outTransitions(List<State> states, int maxBreadth) {
+        List<Transition> transitions = new ArrayList<>();
+        for (State s : states) {
+            List<Transition> outs = s.getOutTransitions();
+            if (maxBreadth != -1 && outs.size() > maxBreadth) {
+                outs = outs.subList(0, maxBreadth);
+            }
+            transitions.addAll(outs);
+        }
+        return transitions;
+    }
+
     /**
      * Performs a model check to explore the entire state space.
-     * Updates the state ID set based on the result of the model-checking.
+     * The state ID set is then filled with the identifiers of the states
+     * actually present in the ProB state space, which need not be dense.
      */
     private void modelCheck() {
-        final int[] nodes = {0};
         ConsistencyChecker modelChecker = new ConsistencyChecker(
             initial.getStateSpace(),
             new ModelCheckingOptions(Collections.singleton(Options.IGNORE_OTHER_ERRORS)),
@@ -186,14 +920,22 @@ public abstract class Environment {
                 public void isFinished(String jobId, long timeElapsed, IModelCheckingResult result,
                                        StateSpaceStats stats) {
                     System.out.println(result.getMessage() + "Total states: " + stats.getNrTotalNodes());
-                    nodes[0] = stats.getNrTotalNodes();
                 }
             }
         );
         modelChecker.call();
-        this.stateIds = IntStream.rangeClosed(0, nodes[0] - 2)
-                                 .boxed()
-                                 .collect(Collectors.toSet());
+
+        GetStatesFromPredicate allStates = new GetStatesFromPredicate(this.parseFormula("1=1"));
+        initial.getStateSpace().execute(allStates);
+        StateIdSet ids = new StateIdSet();
+        for (String id : allStates.getIds()) {
+            try {
+                ids.add(Integer.parseInt(id));
+            } catch (NumberFormatException e) {
+                // the root state is not numbered
+            }
+        }
+        this.stateIds = ids;
     }
 
     /**
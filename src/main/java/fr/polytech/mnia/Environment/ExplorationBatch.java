@@ -0,0 +1,46 @@
+package fr.polytech.mnia.Environment;
+
+import java.util.List;
+
+import de.prob.statespace.State;
+import de.prob.statespace.Transition;
+
+/**
+ * A group of states discovered together during a streaming exploration
+ * (one breadth-first level), with the transitions leaving them.
+ * <p>
+ * The transitions of a batch are those found when its states were
+ * expanded; learners should use {@link #getTransitions()} rather than
+ * {@code getOutTransitions()}. The last batch of a depth-limited
+ * exploration holds the states at the limit, which are not expanded: it
+ * has no transitions, and {@code getOutTransitions()} on its states would
+ * make ProB explore them.
+ * </p>
+ */
+public final class ExplorationBatch {
+
+    private final int depth;
+    private final List<State> states;
+    private final List<Transition> transitions;
+
+    public ExplorationBatch(int depth, List<State> states, List<Transition> transitions) {
+        this.depth = depth;
+        this.states = states;
+        this.transitions = transitions;
+    }
+
+    /** @return the distance of these states from the initial state */
+    public int getDepth() {
+        return depth;
+    }
+
+    /** @return the newly discovered states */
+    public List<State> getStates() {
+        return states;
+    }
+
+    /** @return the transitions leaving the states of this batch (empty at the depth limit) */
+    public List<Transition> getTransitions() {
+        return transitions;
+    }
+}
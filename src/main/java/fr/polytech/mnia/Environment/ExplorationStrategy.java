@@ -1,5 +1,5 @@
 package fr.polytech.mnia.Environment;
 
 public enum ExplorationStrategy {
-    RECURSIVE, PREPROCESS, NONE
+    RECURSIVE, PREPROCESS, FRONTIER, SHARDED, NONE
 }
@@ -0,0 +1,72 @@
+package fr.polytech.mnia.Environment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A subscriber that buffers the batches of a streaming exploration, so that
+ * a learner can wait for them between its own updates.
+ *
+ * @see Environment#exploreAsync(Flow.Subscriber)
+ */
+public class ExplorationStream implements Flow.Subscriber<ExplorationBatch> {
+
+    private final BlockingQueue<ExplorationBatch> batches = new LinkedBlockingQueue<>();
+    private volatile boolean complete;
+    private volatile Throwable failure;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(ExplorationBatch batch) {
+        batches.add(batch);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        this.failure = throwable;
+        this.complete = true;
+    }
+
+    @Override
+    public void onComplete() {
+        this.complete = true;
+    }
+
+    /**
+     * Waits for at least one batch or for the end of the exploration.
+     *
+     * @param timeoutMillis maximum waiting time
+     * @return the pending batches, possibly none
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<ExplorationBatch> await(long timeoutMillis) throws InterruptedException {
+        List<ExplorationBatch> pending = new ArrayList<>();
+        ExplorationBatch first = batches.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (first != null) {
+            pending.add(first);
+            batches.drainTo(pending);
+        }
+        return pending;
+    }
+
+    /**
+     * Tells whether the exploration is over and every batch has been drained.
+     *
+     * @return true when no more batches will arrive
+     * @throws IllegalStateException if the exploration failed
+     */
+    public boolean isFinished() {
+        if (failure != null) {
+            throw new IllegalStateException("Exploration failed", failure);
+        }
+        return complete && batches.isEmpty();
+    }
+}
@@ -0,0 +1,217 @@
+package fr.polytech.mnia.Environment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of compiled models.
+ * <p>
+ * A compiled model depends on the B machine, the environment and its
+ * reward strategy, and the exploration settings. It is written once to a
+ * binary file named after a hash of the machine files and of these
+ * settings; later runs memory-map the file and skip the ProB exploration and
+ * reward evaluation entirely. Rewards computed in Java are not hashed, so
+ * the cache is opt-in (see {@link Environment#setModelCacheEnabled(boolean)}).
+ * </p>
+ * File layout (big-endian):
+ * <pre>
+ *   int magic, int version, int n, int m, int initialIndex,
+ *   int[n+1] offsets, int[m] targets, double[m] rewards, long[n] fingerprints
+ * </pre>
+ * The cache directory defaults to {@code mdp-cache} and can be changed with
+ * the {@code rllib.cache.dir} system property.
+ */
+public final class MdpCache {
+
+    private static final int MAGIC = 0x524C4D44; // "RLMD"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 5 * Integer.BYTES;
+
+    /** B source files hashed together with the machine (included/refined machines). */
+    private static final String[] B_EXTENSIONS = {".mch", ".ref", ".imp", ".def"};
+
+    private MdpCache() {
+        // util class
+    }
+
+    /**
+     * Returns the cache file of a model.
+     *
+     * @param machineFile the main B machine file
+     * @param settings the environment, reward and exploration settings, part of the key
+     * @return the cache file (which may not exist yet)
+     * @throws IOException if the machine files cannot be read
+     */
+    public static Path fileFor(Path machineFile, String settings) throws IOException {
+        Path dir = Paths.get(System.getProperty("rllib.cache.dir", "mdp-cache"));
+        return dir.resolve(machineFile.getFileName() + "-" + key(machineFile, settings) + ".mdp");
+    }
+
+    /**
+     * Hashes the machine file, the B files next to it (which it may include
+     * or refine) and the settings string.
+     */
+    private static String key(Path machineFile, String settings) throws IOException {
+        List<Path> sources = new ArrayList<>();
+        sources.add(machineFile);
+        Path dir = machineFile.toAbsolutePath().getParent();
+        if (dir != null) {
+            try (Stream<Path> siblings = Files.list(dir)) {
+                siblings.filter(p -> !p.getFileName().equals(machineFile.getFileName()))
+                        .filter(MdpCache::isBSource)
+                        .sorted()
+                        .forEach(sources::add);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Path source : sources) {
+            bytes.write(source.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+            bytes.write(Files.readAllBytes(source));
+        }
+        bytes.write(settings.getBytes(StandardCharsets.UTF_8));
+
+        byte[] digest = StateFingerprint.sha256(bytes.toByteArray());
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            hex.append(String.format("%02x", digest[i]));
+        }
+        return hex.toString();
+    }
+
+    private static boolean isBSource(Path p) {
+        String name = p.getFileName().toString();
+        for (String ext : B_EXTENSIONS) {
+            if (name.endsWith(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes a compiled model and the fingerprints of its states.
+     * The file is written next to its final location and moved atomically.
+     *
+     * @param file the cache file
+     * @param mdp the compiled model
+     * @param keys the fingerprint of each state of the model
+     * @throws IOException if the file cannot be written
+     */
+    public static void store(Path file, CompiledMdp mdp, long[] keys) throws IOException {
+        int n = mdp.size();
+        int m = mdp.transitionCount();
+        long size = fileSize(n, m);
+
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ,
+                                                        StandardOpenOption.WRITE)) {
+                MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                out.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(m).putInt(mdp.initialIndex());
+                out.asIntBuffer().put(mdp.offsets());
+                out.position(out.position() + (n + 1) * Integer.BYTES);
+                out.asIntBuffer().put(mdp.targets());
+                out.position(out.position() + m * Integer.BYTES);
+                out.asDoubleBuffer().put(mdp.rewards());
+                out.position(out.position() + m * Double.BYTES);
+                out.asLongBuffer().put(keys);
+                out.force();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            // Do not leave a temporary file behind for every failed run
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /** @return the length of the file of a model with n states and m transitions */
+    private static long fileSize(int n, int m) {
+        return HEADER_BYTES
+                + (long) (n + 1) * Integer.BYTES
+                + (long) m * (Integer.BYTES + Double.BYTES)
+                + (long) n * Long.BYTES;
+    }
+
+    /**
+     * Memory-maps a cache file and rebuilds the compiled model.
+     *
+     * @param file the cache file
+     * @return the compiled model, whose states are matched by fingerprint
+     * @throws IOException if the file cannot be read or is not a valid cache
+     *         file, e.g. truncated or partly written
+     */
+    public static CompiledMdp load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_BYTES) {
+                throw new IOException("Truncated compiled model cache file: " + file);
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException("Not a compiled model cache file: " + file);
+            }
+            int n = in.getInt();
+            int m = in.getInt();
+            int initialIndex = in.getInt();
+            if (n < 0 || m < 0 || initialIndex < -1 || initialIndex >= n) {
+                throw new IOException("Corrupt compiled model cache header (n=" + n + ", m=" + m
+                        + ", initial=" + initialIndex + "): " + file);
+            }
+            if (length != fileSize(n, m)) {
+                throw new IOException("Compiled model cache file has " + length + " bytes, expected "
+                        + fileSize(n, m) + ": " + file);
+            }
+
+            int[] offsets = new int[n + 1];
+            int[] targets = new int[m];
+            double[] rewards = new double[m];
+            long[] keys = new long[n];
+            in.asIntBuffer().get(offsets);
+            in.position(in.position() + (n + 1) * Integer.BYTES);
+            in.asIntBuffer().get(targets);
+            in.position(in.position() + m * Integer.BYTES);
+            in.asDoubleBuffer().get(rewards);
+            in.position(in.position() + m * Double.BYTES);
+            in.asLongBuffer().get(keys);
+            checkGraph(file, offsets, targets, m);
+
+            return CompiledMdp.fromArrays(offsets, targets, rewards, keys, initialIndex);
+        }
+    }
+
+    /**
+     * Checks that the arrays read from a file form a CSR graph, so that a
+     * damaged or stale file is rebuilt instead of failing in the solvers.
+     */
+    private static void checkGraph(Path file, int[] offsets, int[] targets, int m) throws IOException {
+        int n = offsets.length - 1;
+        if (offsets[0] != 0 || offsets[n] != m) {
+            throw new IOException("Corrupt compiled model cache offsets: " + file);
+        }
+        for (int s = 0; s < n; s++) {
+            if (offsets[s + 1] < offsets[s]) {
+                throw new IOException("Corrupt compiled model cache offsets: " + file);
+            }
+        }
+        for (int t : targets) {
+            if (t < 0 || t >= n) {
+                throw new IOException("Corrupt compiled model cache targets: " + file);
+            }
+        }
+    }
+}
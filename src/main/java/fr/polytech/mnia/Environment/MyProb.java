@@ -35,6 +35,7 @@ public class MyProb {
         );
     private Api api;
     private StateSpace stateSpace ;
+    private Path machineFile ;
 
 	@Inject
 	public MyProb(Api api, String file) {
@@ -44,7 +45,8 @@ public class MyProb {
     public void load(String bMachinePath) throws Exception{
         System.out.println("Load classical B Machine");
         Path path = Paths.get(getClass().getResource(bMachinePath).toURI());
-        stateSpace = api.b_load(path.toAbsolutePath().toString());
+        machineFile = path.toAbsolutePath();
+        stateSpace = api.b_load(machineFile.toString());
         System.out.println("Load success");
     }
 
@@ -52,6 +54,10 @@ public class MyProb {
         return this.stateSpace ;
     }
 
+    public Path getMachineFile(){
+        return this.machineFile ;
+    }
+
     public void printActions(List<Transition> actions){
         System.out.println();
 		for (Transition transition : actions) {
@@ -0,0 +1,83 @@
+package fr.polytech.mnia.Environment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.prob.statespace.StateSpace;
+
+/**
+ * A pool of independent ProB animators loaded with the same machine.
+ * <p>
+ * Each {@link MyProb} of the pool owns its own {@link StateSpace} and hence its
+ * own probcli process, so ProB work spread over the pool runs in parallel.
+ * State identifiers are local to each instance: states coming from different
+ * instances must be matched by fingerprint (see {@link StateFingerprint}).
+ * </p>
+ */
+public class MyProbPool implements AutoCloseable {
+
+    private final List<MyProb> instances = new ArrayList<>();
+
+    /**
+     * Creates a pool of animators. Machines are loaded with {@link #load(String)}.
+     *
+     * @param size the number of ProB instances
+     */
+    public MyProbPool(int size) {
+        for (int i = 0; i < size; i++) {
+            instances.add(MyProb.INJECTOR.getInstance(MyProb.class));
+        }
+    }
+
+    /**
+     * Loads the same machine in every instance, in parallel.
+     *
+     * @param bMachinePath the resource path of the .mch file
+     * @throws Exception if any instance fails to load the machine
+     */
+    public void load(String bMachinePath) throws Exception {
+        ExecutorService loaders = Executors.newFixedThreadPool(Math.max(1, instances.size()));
+        try {
+            List<Future<Void>> loads = new ArrayList<>();
+            for (MyProb instance : instances) {
+                loads.add(loaders.submit(() -> {
+                    instance.load(bMachinePath);
+                    return null;
+                }));
+            }
+            for (Future<Void> load : loads) {
+                load.get();
+            }
+        } catch (ExecutionException e) {
+            close();
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            loaders.shutdown();
+        }
+    }
+
+    public int size() {
+        return instances.size();
+    }
+
+    public MyProb get(int i) {
+        return instances.get(i);
+    }
+
+    /**
+     * Stops the probcli process of every instance.
+     */
+    @Override
+    public void close() {
+        for (MyProb instance : instances) {
+            StateSpace space = instance.getStateSpace();
+            if (space != null) {
+                space.kill();
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package fr.polytech.mnia.Environment;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.prob.statespace.State;
+import de.prob.statespace.StateSpace;
+import de.prob.statespace.Transition;
+
+/**
+ * Explores a machine with several ProB instances and merges the result into
+ * a {@link CompiledMdp} keyed by state fingerprint.
+ * <p>
+ * The environment's own instance first expands the state space breadth-first
+ * until the frontier holds a few states per instance. Frontier states are then
+ * dealt to the instances: each one replays the path to its seeds and explores
+ * their sub-graphs on its own probcli process, then evaluates the rewards of
+ * the transitions it expanded in batches on that same process (see
+ * {@link Environment#rewardsOf(List)}). A state is expanded by the first
+ * instance that claims its fingerprint, so every state is expanded exactly once.
+ * </p>
+ */
+final class ShardedExploration {
+
+    /** Frontier states per instance before the exploration is split. */
+    private static final int SEEDS_PER_INSTANCE = 4;
+
+    private final Environment env;
+    private final MyProbPool pool;
+    private final int maxDepth;
+    private final int maxBreadth;
+
+    /** Fingerprints of the states already claimed by some instance. */
+    private final Set<Long> claimed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param env the environment; its instance explores the first levels and one shard
+     * @param pool the additional instances, loaded with the same machine
+     * @param maxDepth maximum depth allowed (-1 for unlimited)
+     * @param maxBreadth maximum number of children per state (-1 for unlimited)
+     */
+    ShardedExploration(Environment env, MyProbPool pool, int maxDepth, int maxBreadth) {
+        this.env = env;
+        this.pool = pool;
+        this.maxDepth = maxDepth;
+        this.maxBreadth = maxBreadth;
+    }
+
+    /**
+     * Runs the exploration from the environment's initial state.
+     *
+     * @param initial the initialised state of the environment's own instance
+     * @return the merged model
+     */
+    CompiledMdp run(State initial) throws InterruptedException {
+        int nShards = pool.size() + 1;
+        Shard main = new Shard(initial);
+        Node root = new Node(initial, main.fingerprint.of(initial), 0);
+        claimed.add(root.key);
+        main.owned.add(root.key);
+
+        // Breadth-first on the environment's instance until the frontier is wide enough
+        Map<State, Transition> parents = new HashMap<>();
+        List<Node> level = Collections.singletonList(root);
+        while (!level.isEmpty() && level.size() < SEEDS_PER_INSTANCE * nShards) {
+            List<Node> next = new ArrayList<>();
+            for (Node n : level) {
+                next.addAll(main.expand(n, parents));
+            }
+            level = next;
+        }
+
+        // Deal the frontier to the instances; each replays the paths to its seeds
+        List<Shard> shards = new ArrayList<>();
+        shards.add(main);
+        for (int k = 0; k < pool.size(); k++) {
+            shards.add(null);
+        }
+        List<List<Node>> seeds = new ArrayList<>();
+        for (int k = 0; k < nShards; k++) {
+            seeds.add(new ArrayList<>());
+        }
+        for (int i = 0; i < level.size(); i++) {
+            seeds.get(i % nShards).add(level.get(i));
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(nShards);
+        try {
+            List<Future<Shard>> runs = new ArrayList<>();
+            for (int k = 0; k < nShards; k++) {
+                final int shard = k;
+                runs.add(workers.submit(() -> {
+                    Shard s = shard == 0 ? main : new Shard(initialise(pool.get(shard - 1).getStateSpace()));
+                    List<Node> own = new ArrayList<>();
+                    for (Node seed : seeds.get(shard)) {
+                        State state = shard == 0 ? seed.state : replay(s.initial, pathTo(seed.state, parents));
+                        own.add(new Node(state, seed.key, seed.depth));
+                    }
+                    s.explore(own);
+                    s.evaluateRewards();
+                    return s;
+                }));
+            }
+            for (int k = 0; k < nShards; k++) {
+                shards.set(k, runs.get(k).get());
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Sharded exploration failed", e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+
+        return merge(shards, root.key);
+    }
+
+    /** Executes SETUP_CONSTANTS and INITIALISE_MACHINE, as {@link Environment#initialise()}. */
+    private static State initialise(StateSpace space) {
+        State s = space.getRoot();
+        Transition setup = s.findTransition(Transition.SETUP_CONSTANTS_NAME);
+        if (setup != null) {
+            s = setup.getDestination();
+        }
+        Transition initialisation = s.findTransition(Transition.INITIALISE_MACHINE_NAME);
+        if (initialisation != null) {
+            s = initialisation.getDestination();
+        }
+        return s.exploreIfNeeded();
+    }
+
+    private static List<Transition> pathTo(State s, Map<State, Transition> parents) {
+        List<Transition> path = new ArrayList<>();
+        for (Transition t = parents.get(s); t != null; t = parents.get(t.getSource())) {
+            path.add(t);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /** Follows the same operations and parameters in another instance. */
+    private static State replay(State from, List<Transition> path) {
+        State s = from;
+        for (Transition t : path) {
+            String predicate = t.getParameterPredicate();
+            Transition same = predicate == null || predicate.isBlank()
+                    ? s.findTransition(t.getName())
+                    : s.findTransition(t.getName(), predicate);
+            if (same == null) {
+                throw new IllegalStateException("Cannot replay " + t.getName() + "(" + predicate + ")");
+            }
+            s = same.getDestination();
+        }
+        return s;
+    }
+
+    /** Numbers all claimed states and groups the recorded edges by source (CSR). */
+    private static CompiledMdp merge(List<Shard> shards, long initialKey) {
+        Map<Long, Integer> index = new HashMap<>();
+        List<Long> keys = new ArrayList<>();
+        for (Shard shard : shards) {
+            for (long key : shard.owned) {
+                if (index.putIfAbsent(key, keys.size()) == null) {
+                    keys.add(key);
+                }
+            }
+        }
+
+        int n = keys.size();
+        int m = 0;
+        int[] offsets = new int[n + 1];
+        for (Shard shard : shards) {
+            m += shard.edgeCount;
+            for (int e = 0; e < shard.edgeCount; e++) {
+                offsets[index.get(shard.edgeSources[e]) + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        int[] fill = Arrays.copyOf(offsets, n);
+        int[] targets = new int[m];
+        double[] rewards = new double[m];
+        for (Shard shard : shards) {
+            for (int e = 0; e < shard.edgeCount; e++) {
+                int slot = fill[index.get(shard.edgeSources[e])]++;
+                targets[slot] = index.get(shard.edgeTargets[e]);
+                rewards[slot] = shard.edgeRewards[e];
+            }
+        }
+
+        long[] keyArray = new long[n];
+        for (int i = 0; i < n; i++) {
+            keyArray[i] = keys.get(i);
+        }
+        return CompiledMdp.fromArrays(offsets, targets, rewards, keyArray, index.get(initialKey));
+    }
+
+    /** A state of some instance with its fingerprint and depth. */
+    private static final class Node {
+        final State state;
+        final long key;
+        final int depth;
+
+        Node(State state, long key, int depth) {
+            this.state = state;
+            this.key = key;
+            this.depth = depth;
+        }
+    }
+
+    /** Exploration state of one ProB instance: the states it owns and the edges it expanded. */
+    private final class Shard {
+        final State initial;
+        final StateFingerprint fingerprint;
+        final List<Long> owned = new ArrayList<>();
+
+        long[] edgeSources = new long[1024];
+        long[] edgeTargets = new long[1024];
+        final List<Transition> edgeTransitions = new ArrayList<>();
+        double[] edgeRewards;
+        int edgeCount;
+
+        Shard(State initial) {
+            this.initial = initial;
+            this.fingerprint = StateFingerprint.forMachineOf(initial);
+        }
+
+        /** Breadth-first exploration of the sub-graphs of the given seeds. */
+        void explore(List<Node> seeds) {
+            Deque<Node> queue = new ArrayDeque<>(seeds);
+            while (!queue.isEmpty()) {
+                queue.addAll(expand(queue.poll(), null));
+            }
+        }
+
+        /**
+         * Records the outgoing edges of a state and returns the successors
+         * claimed by this instance.
+         */
+        List<Node> expand(Node n, Map<State, Transition> parents) {
+            if (maxDepth != -1 && n.depth >= maxDepth) {
+                return Collections.emptyList();
+            }
+            List<Transition> outs = n.state.getOutTransitions();
+            if (maxBreadth != -1 && outs.size() > maxBreadth) {
+                outs = outs.subList(0, maxBreadth);
+            }
+            List<State> successors = new ArrayList<>(outs.size());
+            for (Transition t : outs) {
+                successors.add(t.getDestination());
+            }
+            long[] keys = fingerprint.ofAll(successors);
+
+            List<Node> claimedHere = new ArrayList<>();
+            for (int i = 0; i < outs.size(); i++) {
+                State sPrime = successors.get(i);
+                addEdge(n.key, keys[i], outs.get(i));
+                if (claimed.add(keys[i])) {
+                    owned.add(keys[i]);
+                    claimedHere.add(new Node(sPrime, keys[i], n.depth + 1));
+                    if (parents != null) {
+                        parents.put(sPrime, outs.get(i));
+                    }
+                }
+            }
+            return claimedHere;
+        }
+
+        /** Evaluates the rewards of the recorded edges with batched calls on this instance. */
+        void evaluateRewards() {
+            edgeRewards = env.rewardsOf(edgeTransitions);
+        }
+
+        private void addEdge(long source, long target, Transition t) {
+            if (edgeCount == edgeSources.length) {
+                edgeSources = Arrays.copyOf(edgeSources, 2 * edgeCount);
+                edgeTargets = Arrays.copyOf(edgeTargets, 2 * edgeCount);
+            }
+            edgeSources[edgeCount] = source;
+            edgeTargets[edgeCount] = target;
+            edgeTransitions.add(t);
+            edgeCount++;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package fr.polytech.mnia.Environment;
+
+import java.util.Collections;
+import java.util.List;
+
+import de.prob.statespace.State;
+
+/**
+ * Maps states to a canonical key shared by all the states of a symmetry
+ * class (e.g. the boards equal up to a rotation or a reflection).
+ * <p>
+ * When a canonicalizer is set on an {@link Environment} (see
+ * {@link Environment#setCanonicalizer(StateCanonicalizer)}), the compiled
+ * model has one state per class: solvers store and back up one value per
+ * class, and queries on any member of a class are mapped to it (see
+ * {@link CompiledMdp#indexOf(State)}). This is only sound when symmetric
+ * states have symmetric transitions and equal rewards.
+ * </p>
+ */
+@FunctionalInterface
+public interface StateCanonicalizer {
+
+    /**
+     * Computes the canonical keys of many states, typically with batched
+     * ProB evaluations.
+     *
+     * @param states the states, all belonging to the same state space
+     * @return their keys, in the same order; two states get the same key
+     *         exactly when they are symmetric
+     */
+    long[] canonicalKeys(List<State> states);
+
+    /**
+     * Computes the canonical key of a single state.
+     *
+     * @param s the state
+     * @return its key
+     */
+    default long canonicalKey(State s) {
+        return canonicalKeys(Collections.singletonList(s))[0];
+    }
+}
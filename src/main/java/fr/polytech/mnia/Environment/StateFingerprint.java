@@ -0,0 +1,106 @@
+package fr.polytech.mnia.Environment;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import de.prob.animator.domainobjects.AbstractEvalResult;
+import de.prob.animator.domainobjects.FormulaExpand;
+import de.prob.animator.domainobjects.IEvalElement;
+import de.prob.statespace.State;
+import de.prob.statespace.StateSpace;
+
+/**
+ * Session-independent identity of ProB states.
+ * <p>
+ * ProB numbers states in discovery order, so the same machine state gets
+ * different identifiers in different runs (or in different ProB instances).
+ * A fingerprint is a 64-bit hash of the values of all machine variables,
+ * which is stable across sessions and can be used to match states.
+ * </p>
+ */
+final class StateFingerprint {
+
+    /** Number of states evaluated per ProB call in {@link #ofAll(List)}. */
+    private static final int BATCH_SIZE = 1000;
+
+    /** Machine variables, sorted by their code to get a stable order. */
+    private final List<IEvalElement> variables;
+
+    private StateFingerprint(List<IEvalElement> variables) {
+        this.variables = variables;
+    }
+
+    /**
+     * Builds a fingerprint function for the machine a state belongs to.
+     *
+     * @param s any state of the machine
+     * @return the fingerprint function
+     */
+    static StateFingerprint forMachineOf(State s) {
+        Map<IEvalElement, AbstractEvalResult> values = s.getVariableValues(FormulaExpand.EXPAND);
+        List<IEvalElement> variables = new ArrayList<>(values.keySet());
+        variables.sort(Comparator.comparing(IEvalElement::getCode));
+        return new StateFingerprint(variables);
+    }
+
+    /**
+     * Computes the fingerprint of a single state.
+     *
+     * @param s the state
+     * @return its fingerprint
+     */
+    long of(State s) {
+        return ofAll(Collections.singletonList(s))[0];
+    }
+
+    /**
+     * Computes the fingerprints of many states with batched ProB evaluations.
+     *
+     * @param states the states, all belonging to the same state space
+     * @return their fingerprints, in the same order
+     */
+    long[] ofAll(List<State> states) {
+        long[] fingerprints = new long[states.size()];
+        if (states.isEmpty()) {
+            return fingerprints;
+        }
+        StateSpace space = states.get(0).getStateSpace();
+        for (int from = 0; from < states.size(); from += BATCH_SIZE) {
+            List<State> batch = states.subList(from, Math.min(from + BATCH_SIZE, states.size()));
+            Map<State, Map<IEvalElement, AbstractEvalResult>> values =
+                    space.evaluateForGivenStates(batch, this.variables);
+            for (int i = 0; i < batch.size(); i++) {
+                fingerprints[from + i] = hash(values.get(batch.get(i)));
+            }
+        }
+        return fingerprints;
+    }
+
+    private long hash(Map<IEvalElement, AbstractEvalResult> values) {
+        StringBuilder sb = new StringBuilder();
+        for (IEvalElement variable : this.variables) {
+            sb.append(variable.getCode()).append('=').append(values.get(variable)).append(';');
+        }
+        byte[] digest = sha256(sb.toString().getBytes(StandardCharsets.UTF_8));
+        long h = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            h = (h << 8) | (digest[i] & 0xFF);
+        }
+        return h;
+    }
+
+    static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is mandatory on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package fr.polytech.mnia.Environment;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+
+/**
+ * Set of explored ProB state identifiers, stored as a bit set.
+ * <p>
+ * It is a {@code Set<Integer>} for existing callers, but solvers should
+ * iterate over {@link #ids()} (or use {@link #forEachId(IntConsumer)}),
+ * which does not box identifiers and does not assume they are dense.
+ * </p>
+ * Not thread-safe: the set is filled by the exploration and read afterwards.
+ */
+public final class StateIdSet extends AbstractSet<Integer> {
+
+    private final BitSet bits = new BitSet();
+
+    private int size;
+
+    /** Sorted identifiers, rebuilt on first use after a change. */
+    private int[] sorted;
+
+    /**
+     * Adds a state identifier.
+     *
+     * @param id a non-negative ProB state id
+     * @return true if the id was not already in the set
+     */
+    public boolean add(int id) {
+        if (this.bits.get(id)) {
+            return false;
+        }
+        this.bits.set(id);
+        this.size++;
+        this.sorted = null;
+        return true;
+    }
+
+    @Override
+    public boolean add(Integer id) {
+        return add(id.intValue());
+    }
+
+    /**
+     * @param id a ProB state id
+     * @return true if the id belongs to the set
+     */
+    public boolean contains(int id) {
+        return id >= 0 && this.bits.get(id);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Integer && contains(((Integer) o).intValue());
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void clear() {
+        this.bits.clear();
+        this.size = 0;
+        this.sorted = null;
+    }
+
+    /**
+     * Returns the identifiers in increasing order. The array is cached until
+     * the set changes, so repeated sweeps iterate it without allocating; it
+     * is shared and must not be modified.
+     *
+     * @return the sorted state ids
+     */
+    public int[] ids() {
+        if (this.sorted == null) {
+            this.sorted = this.bits.stream().toArray();
+        }
+        return this.sorted;
+    }
+
+    /**
+     * @return the largest id of the set, or -1 if it is empty
+     */
+    public int maxId() {
+        return this.bits.length() - 1;
+    }
+
+    /**
+     * Applies an action to every id, in increasing order, without boxing.
+     *
+     * @param action the action
+     */
+    public void forEachId(IntConsumer action) {
+        for (int id = this.bits.nextSetBit(0); id >= 0; id = this.bits.nextSetBit(id + 1)) {
+            action.accept(id);
+        }
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        return new Iterator<Integer>() {
+            private int next = bits.nextSetBit(0);
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return this.next >= 0;
+            }
+
+            @Override
+            public Integer next() {
+                if (this.next < 0) {
+                    throw new NoSuchElementException();
+                }
+                this.last = this.next;
+                this.next = bits.nextSetBit(this.next + 1);
+                return this.last;
+            }
+
+            @Override
+            public void remove() {
+                if (this.last < 0) {
+                    throw new IllegalStateException();
+                }
+                bits.clear(this.last);
+                size--;
+                sorted = null;
+                this.last = -1;
+            }
+        };
+    }
+}
@@ -0,0 +1,182 @@
+package fr.polytech.mnia.Environment;
+
+import java.util.Arrays;
+
+/**
+ * Strongly connected components of the transition graph of a {@link CompiledMdp}.
+ * <p>
+ * Components are computed with an iterative version of Tarjan's algorithm
+ * (no recursion, so deep models do not overflow the call stack) and are
+ * numbered in reverse topological order: every transition leaving
+ * component {@code c} leads to a component {@code c' <= c}. Solving the
+ * components in increasing order therefore only reads values that are
+ * already final.
+ * </p>
+ * The states of component {@code c} are {@code states()[k]} for k in
+ * {@code [offsets()[c], offsets()[c+1])}.
+ */
+public final class StronglyConnectedComponents {
+
+    private final int[] component;
+    private final int[] offsets;
+    private final int[] states;
+    private final boolean[] trivial;
+    private final int nonTrivialCount;
+
+    private StronglyConnectedComponents(int[] component, int[] offsets, int[] states,
+                                        boolean[] trivial) {
+        this.component = component;
+        this.offsets = offsets;
+        this.states = states;
+        this.trivial = trivial;
+        int count = 0;
+        for (boolean t : trivial) {
+            if (!t) {
+                count++;
+            }
+        }
+        this.nonTrivialCount = count;
+    }
+
+    /**
+     * Decomposes the transition graph of a compiled model.
+     *
+     * @param mdp the compiled model
+     * @return its strongly connected components, in reverse topological order
+     */
+    public static StronglyConnectedComponents of(CompiledMdp mdp) {
+        int n = mdp.size();
+        int[] edgeOffsets = mdp.offsets();
+        int[] targets = mdp.targets();
+
+        int[] index = new int[n];
+        int[] low = new int[n];
+        int[] cursor = new int[n];
+        boolean[] onStack = new boolean[n];
+        Arrays.fill(index, -1);
+
+        int[] stack = new int[n];
+        int stackSize = 0;
+        int[] calls = new int[n];
+        int callSize = 0;
+
+        int[] component = new int[n];
+        int[] order = new int[n];
+        int ordered = 0;
+        int[] offsets = new int[n + 1];
+        int count = 0;
+        int nextIndex = 0;
+
+        for (int root = 0; root < n; root++) {
+            if (index[root] != -1) {
+                continue;
+            }
+            index[root] = low[root] = nextIndex++;
+            cursor[root] = edgeOffsets[root];
+            stack[stackSize++] = root;
+            onStack[root] = true;
+            calls[callSize++] = root;
+
+            while (callSize > 0) {
+                int v = calls[callSize - 1];
+                if (cursor[v] < edgeOffsets[v + 1]) {
+                    int w = targets[cursor[v]++];
+                    if (index[w] == -1) {
+                        index[w] = low[w] = nextIndex++;
+                        cursor[w] = edgeOffsets[w];
+                        stack[stackSize++] = w;
+                        onStack[w] = true;
+                        calls[callSize++] = w;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+
+                // All successors of v are done
+                callSize--;
+                if (low[v] == index[v]) {
+                    int w;
+                    do {
+                        w = stack[--stackSize];
+                        onStack[w] = false;
+                        component[w] = count;
+                        order[ordered++] = w;
+                    } while (w != v);
+                    count++;
+                    offsets[count] = ordered;
+                }
+                if (callSize > 0) {
+                    int u = calls[callSize - 1];
+                    low[u] = Math.min(low[u], low[v]);
+                }
+            }
+        }
+
+        boolean[] trivial = new boolean[count];
+        for (int c = 0; c < count; c++) {
+            if (offsets[c + 1] - offsets[c] == 1) {
+                int s = order[offsets[c]];
+                trivial[c] = true;
+                for (int e = edgeOffsets[s]; e < edgeOffsets[s + 1]; e++) {
+                    if (targets[e] == s) {
+                        trivial[c] = false; // self-loop
+                        break;
+                    }
+                }
+            }
+        }
+        return new StronglyConnectedComponents(component, Arrays.copyOf(offsets, count + 1), order, trivial);
+    }
+
+    /** @return the number of components */
+    public int count() {
+        return this.trivial.length;
+    }
+
+    /** @return the number of components with a cycle (several states or a self-loop) */
+    public int nonTrivialCount() {
+        return this.nonTrivialCount;
+    }
+
+    /** @return true if the transition graph has no cycle */
+    public boolean isAcyclic() {
+        return this.nonTrivialCount == 0;
+    }
+
+    /**
+     * @param c a component
+     * @return true if c is a single state without a self-loop
+     */
+    public boolean isTrivial(int c) {
+        return this.trivial[c];
+    }
+
+    /**
+     * @param state a dense state index
+     * @return the component of the state
+     */
+    public int componentOf(int state) {
+        return this.component[state];
+    }
+
+    /**
+     * Component offsets into {@link #states()}. The returned array is shared
+     * and must not be modified.
+     *
+     * @return the offsets, of length {@code count() + 1}
+     */
+    public int[] offsets() {
+        return this.offsets;
+    }
+
+    /**
+     * States grouped by component. The returned array is shared and must
+     * not be modified.
+     *
+     * @return the states, of length {@code mdp.size()}
+     */
+    public int[] states() {
+        return this.states;
+    }
+}
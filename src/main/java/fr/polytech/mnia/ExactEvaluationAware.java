@@ -0,0 +1,13 @@
+package fr.polytech.mnia;
+
+/**
+ * A policy-iteration agent that can evaluate each policy by a direct solve
+ * instead of sweeps.
+ */
+public interface ExactEvaluationAware {
+
+    /** @param exactPolicyEvaluation true to solve each policy exactly (off by default) */
+    void setExactPolicyEvaluation(boolean exactPolicyEvaluation);
+
+    boolean isExactPolicyEvaluation();
+}
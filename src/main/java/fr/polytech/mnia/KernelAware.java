@@ -0,0 +1,15 @@
+package fr.polytech.mnia;
+
+import fr.polytech.mnia.mbrl.kernel.KernelType;
+
+/**
+ * An agent whose compiled Bellman backups run on a selectable
+ * {@link fr.polytech.mnia.mbrl.kernel.BellmanKernel}.
+ */
+public interface KernelAware {
+
+    /** @param kernel the kernel of the compiled backups (SCALAR by default) */
+    void setKernel(KernelType kernel);
+
+    KernelType getKernel();
+}
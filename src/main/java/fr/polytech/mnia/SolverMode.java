@@ -0,0 +1,19 @@
+package fr.polytech.mnia;
+
+/**
+ * How offline agents access the model during learning.
+ * <ul>
+ *   <li>{@code PROB}: Bellman backups query ProB states, transitions and rewards directly.</li>
+ *   <li>{@code COMPILED}: the explored model is compiled once into a
+ *       {@link fr.polytech.mnia.Environment.CompiledMdp} and backups run on primitive arrays.</li>
+ *   <li>{@code STREAMING}: the state space is explored on a background thread
+ *       ({@link fr.polytech.mnia.Environment.Environment#exploreAsync}) and backups
+ *       start on the first explored levels. Agents without a streaming variant
+ *       behave as in {@code PROB}.</li>
+ * </ul>
+ */
+public enum SolverMode {
+    PROB,
+    COMPILED,
+    STREAMING
+}
@@ -1,14 +1,45 @@
 package fr.polytech.mnia;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import de.prob.animator.domainobjects.AbstractEvalResult;
+import de.prob.animator.domainobjects.IEvalElement;
 import de.prob.statespace.State;
 import de.prob.statespace.Transition;
 import fr.polytech.mnia.Environment.Environment;
+import fr.polytech.mnia.Environment.ExplorationBatch;
 import fr.polytech.mnia.Environment.RewardStrategy;
+import fr.polytech.mnia.Environment.StateCanonicalizer;
 
 public class TicTacToe extends Environment {
     RewardStrategy rStrategy ;
+
+    /* Outcome of each explored state (ONTHEFLY), indexed by ProB state id */
+    private static final byte UNKNOWN = 0, WIN = 1, LOSS = 2, DRAW = 3, ONGOING = 4;
+    private volatile byte[] outcomes = new byte[0];
+
+    /* Parsed return value of each explored transition (EMBEDDED), indexed by ProB transition id */
+    private volatile double[] embeddedRewards = new double[0];
+
+    /* Cell (3 * (row - 1) + col - 1) of each cell under the 8 symmetries of the board */
+    private static final int[][] SYMMETRIES = {
+        {0, 1, 2, 3, 4, 5, 6, 7, 8}, // identity
+        {6, 3, 0, 7, 4, 1, 8, 5, 2}, // rotation by 90 degrees
+        {8, 7, 6, 5, 4, 3, 2, 1, 0}, // rotation by 180 degrees
+        {2, 5, 8, 1, 4, 7, 0, 3, 6}, // rotation by 270 degrees
+        {2, 1, 0, 5, 4, 3, 8, 7, 6}, // vertical axis
+        {6, 7, 8, 3, 4, 5, 0, 1, 2}, // horizontal axis
+        {0, 3, 6, 1, 4, 7, 2, 5, 8}, // main diagonal
+        {8, 5, 2, 7, 4, 1, 6, 3, 0}  // anti-diagonal
+    };
+    private static final Pattern NUMBER = Pattern.compile("\\d+");
+
     public TicTacToe(String filePath, RewardStrategy rStrategy) {
-        super(filePath);
+        super(filePath, rStrategy);
         this.rStrategy = rStrategy ;
 
         if(rStrategy == RewardStrategy.ONCEANDFORALL){
@@ -32,6 +63,11 @@ public class TicTacToe extends Environment {
             case ONCEANDFORALL:
                 return this.evalFormulas(sPrime);  
             case ONTHEFLY:
+                double known = knownReward(s, a, sPrime);
+                if (!Double.isNaN(known)) {
+                    return known;
+                }
+                // not explored: ask ProB
                 if (sPrime.eval("win(0)").toString().equals("TRUE")) {
                     return 1.0;
                 } else if (sPrime.eval("win(1)").toString().equals("TRUE")) {
@@ -41,12 +77,272 @@ public class TicTacToe extends Environment {
                 }
                 return -0.25; // coût léger pour inciter à terminer rapidement
             case EMBEDDED:
-                return Double.parseDouble(a.getReturnValues().get(0));
+                double r = embeddedReward(a);
+                return Double.isNaN(r) ? Double.parseDouble(a.getReturnValues().get(0)) : r;
             default:
                 return 0.0;
         }
     }
+
+    @Override
+    public double knownReward(State s, Transition a, State sPrime) {
+        switch (rStrategy) {
+            case ONTHEFLY:
+                return rewardOf(outcome(sPrime));
+            case EMBEDDED:
+                return embeddedReward(a);
+            default:
+                return super.knownReward(s, a, sPrime);
+        }
+    }
+
+    private static double rewardOf(byte outcome) {
+        switch (outcome) {
+            case WIN: return 1.0;
+            case LOSS: return -1.0;
+            case DRAW: return 0.0;
+            case ONGOING: return -0.25;
+            default: return Double.NaN;
+        }
+    }
+
+    /**
+     * Computes the rewards of transitions of another ProB instance (SHARDED
+     * exploration) with the same batched evaluations as the tables.
+     */
+    @Override
+    protected double[] rewardsOf(List<Transition> transitions) {
+        double[] rewards = new double[transitions.size()];
+        switch (rStrategy) {
+            case ONTHEFLY:
+                List<State> targets = new ArrayList<>();
+                int[] index = destinationIndex(transitions, targets);
+                AbstractEvalResult[][] values = this.evaluateOnStates(targets, outcomeFormulas());
+                for (int i = 0; i < rewards.length; i++) {
+                    rewards[i] = rewardOf(outcomeOf(values, index[i]));
+                }
+                break;
+            case EMBEDDED:
+                this.evaluateTransitions(transitions);
+                for (int i = 0; i < rewards.length; i++) {
+                    List<String> returned = transitions.get(i).getReturnValues();
+                    rewards[i] = returned.isEmpty() ? Double.NaN : Double.parseDouble(returned.get(0));
+                }
+                break;
+            default:
+                return super.rewardsOf(transitions);
+        }
+        for (int i = 0; i < rewards.length; i++) {
+            if (Double.isNaN(rewards[i])) {
+                Transition t = transitions.get(i);
+                rewards[i] = reward(t.getSource(), t, t.getDestination());
+            }
+        }
+        return rewards;
+    }
     
+    /**
+     * Precomputes the reward tables of the ONTHEFLY and EMBEDDED strategies
+     * (ONCEANDFORALL is tabulated by Environment itself).
+     */
+    @Override
+    protected void onExplored() {
+        switch (rStrategy) {
+            case ONTHEFLY:
+                tabulateOutcomes();
+                break;
+            case EMBEDDED:
+                tabulateEmbeddedRewards();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Tabulates the rewards of each level of a streaming exploration, so
+     * that learners get them from {@link #knownReward} without ProB calls.
+     */
+    @Override
+    protected void onExploredBatch(ExplorationBatch batch) {
+        switch (rStrategy) {
+            case ONTHEFLY:
+                tabulateOutcomes(batch.getStates());
+                break;
+            case EMBEDDED:
+                tabulateEmbeddedRewards(batch.getTransitions());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * ONTHEFLY: evaluates win(0), win(1) and the draw condition for all explored
+     * states in a few batched ProB calls, so that reward() becomes a table lookup.
+     * Without a win, a state is terminal exactly when the board is full.
+     */
+    private void tabulateOutcomes() {
+        AbstractEvalResult[][] values = this.evaluateOnExploredStates(outcomeFormulas());
+
+        byte[] table = new byte[values[0].length];
+        for (int id = 0; id < table.length; id++) {
+            table[id] = outcomeOf(values, id);
+        }
+        this.outcomes = table;
+    }
+
+    /** ONTHEFLY: adds the outcomes of the given states to the table. */
+    private void tabulateOutcomes(List<State> states) {
+        AbstractEvalResult[][] values = this.evaluateOnStates(states, outcomeFormulas());
+
+        int maxId = -1;
+        for (State s : states) {
+            maxId = Math.max(maxId, localId(s));
+        }
+        byte[] previous = outcomes;
+        byte[] table = Arrays.copyOf(previous, Math.max(previous.length, maxId + 1));
+        for (int i = 0; i < states.size(); i++) {
+            int id = localId(states.get(i));
+            if (id >= 0) {
+                table[id] = outcomeOf(values, i);
+            }
+        }
+        this.outcomes = table;
+    }
+
+    /** win(0), win(1) and the draw condition, in the order read by {@link #outcomeOf}. */
+    private List<IEvalElement> outcomeFormulas() {
+        return Arrays.asList(
+            parseFormula("win(0)"),
+            parseFormula("win(1)"),
+            parseFormula("card(square) = 9")
+        );
+    }
+
+    private static byte outcomeOf(AbstractEvalResult[][] values, int i) {
+        if (values[0][i] == null || values[1][i] == null || values[2][i] == null) {
+            return UNKNOWN;
+        }
+        if (isTrue(values[0][i])) {
+            return WIN;
+        } else if (isTrue(values[1][i])) {
+            return LOSS;
+        } else if (isTrue(values[2][i])) {
+            return DRAW;
+        }
+        return ONGOING;
+    }
+
+    /**
+     * EMBEDDED: parses the return value of every explored transition once,
+     * so that reward() does no string handling or ProB work afterwards.
+     */
+    private void tabulateEmbeddedRewards() {
+        this.embeddedRewards = mergeEmbeddedRewards(this.exploredTransitions());
+    }
+
+    /** EMBEDDED: adds the return values of the given transitions to the table. */
+    private void tabulateEmbeddedRewards(List<Transition> transitions) {
+        this.evaluateTransitions(transitions);
+        this.embeddedRewards = mergeEmbeddedRewards(transitions);
+    }
+
+    private double[] mergeEmbeddedRewards(List<Transition> transitions) {
+        int maxId = -1;
+        for (Transition t : transitions) {
+            maxId = Math.max(maxId, transitionId(t));
+        }
+        double[] previous = embeddedRewards;
+        double[] table = Arrays.copyOf(previous, Math.max(previous.length, maxId + 1));
+        Arrays.fill(table, previous.length, table.length, Double.NaN);
+        for (Transition t : transitions) {
+            int id = transitionId(t);
+            if (id >= 0 && !t.getReturnValues().isEmpty()) {
+                table[id] = Double.parseDouble(t.getReturnValues().get(0));
+            }
+        }
+        return table;
+    }
+
+    private double embeddedReward(Transition t) {
+        double[] table = embeddedRewards;
+        int id = localId(t.getSource()) < 0 ? -1 : transitionId(t);
+        return id >= 0 && id < table.length ? table[id] : Double.NaN;
+    }
+
+    private static int transitionId(Transition t) {
+        try {
+            return Integer.parseInt(t.getId());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isTrue(AbstractEvalResult r) {
+        return r.toString().equals("TRUE");
+    }
+
+    /**
+     * Symmetry reduction of the board: two states are equivalent when their
+     * {@code square} relations are equal up to one of the 8 rotations and
+     * reflections of the board (and the same player is to move). Rewards
+     * only depend on wins, draws and the number of moves, so they agree on
+     * equivalent states. Use with {@link #setCanonicalizer(StateCanonicalizer)}.
+     *
+     * @return the canonicalizer of the boards
+     */
+    public StateCanonicalizer boardSymmetries() {
+        return this::canonicalBoards;
+    }
+
+    /**
+     * Evaluates square and turn in batches and encodes each board in base 3
+     * (0 empty, 1 for player 1, 2 for player 0); the key of a state is the
+     * smallest code over the symmetries of its board, times 2, plus turn.
+     */
+    private long[] canonicalBoards(List<State> states) {
+        List<IEvalElement> formulas = Arrays.asList(parseFormula("square"), parseFormula("turn"));
+        AbstractEvalResult[][] values = this.evaluateOnStates(states, formulas);
+
+        long[] keys = new long[states.size()];
+        int[] cells = new int[9];
+        for (int i = 0; i < keys.length; i++) {
+            if (values[0][i] == null || values[1][i] == null) {
+                keys[i] = -1 - i; // not initialised: left alone in its class
+                continue;
+            }
+            // Entries of square are triples row |-> col |-> player
+            Arrays.fill(cells, 0);
+            Matcher numbers = NUMBER.matcher(values[0][i].toString());
+            while (numbers.find()) {
+                int row = Integer.parseInt(numbers.group());
+                numbers.find();
+                int col = Integer.parseInt(numbers.group());
+                numbers.find();
+                int player = Integer.parseInt(numbers.group());
+                cells[3 * (row - 1) + col - 1] = player == 1 ? 1 : 2;
+            }
+
+            long best = Long.MAX_VALUE;
+            for (int[] symmetry : SYMMETRIES) {
+                long code = 0;
+                for (int c = 0; c < 9; c++) {
+                    code = 3 * code + cells[symmetry[c]];
+                }
+                best = Math.min(best, code);
+            }
+            keys[i] = 2 * best + Integer.parseInt(values[1][i].toString().trim());
+        }
+        return keys;
+    }
+
+    private byte outcome(State s) {
+        byte[] table = outcomes;
+        int id = localId(s);
+        return id >= 0 && id < table.length ? table[id] : UNKNOWN;
+    }
+
     public void prettyPrint(State state) {
         String input = state.eval("square").toString();
     
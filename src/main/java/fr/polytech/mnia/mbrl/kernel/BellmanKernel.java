@@ -0,0 +1,43 @@
+package fr.polytech.mnia.mbrl.kernel;
+
+/**
+ * Inner loops of a Bellman backup over the flattened transitions of a
+ * {@link fr.polytech.mnia.Environment.CompiledMdp}: the Q-value of every
+ * edge, {@code Q[e] = R[e] + gamma * V[target(e)]}, and the maximum of the
+ * Q-values of the edges of a state.
+ * <p>
+ * A kernel is bound to one compiled model; its edge ranges are CSR ranges
+ * of that model (the edges of state s are {@code [offsets[s], offsets[s+1])}).
+ * Implementations are stateless and can be shared by several threads
+ * working on disjoint ranges.
+ * </p>
+ *
+ * @see BellmanKernels#create(fr.polytech.mnia.Environment.CompiledMdp, KernelType)
+ */
+public interface BellmanKernel {
+
+    /**
+     * Computes {@code q[e] = rewards[e] + gamma * v[targets[e]]} for every
+     * edge e in {@code [fromEdge, toEdge)}.
+     *
+     * @param v the state values
+     * @param gamma the discount factor
+     * @param q the per-edge output array
+     * @param fromEdge first edge (inclusive)
+     * @param toEdge last edge (exclusive)
+     */
+    void qValues(double[] v, double gamma, double[] q, int fromEdge, int toEdge);
+
+    /**
+     * Returns the largest value of {@code q} in {@code [fromEdge, toEdge)}.
+     *
+     * @param q per-edge values
+     * @param fromEdge first edge (inclusive)
+     * @param toEdge last edge (exclusive)
+     * @return the maximum, or {@code Double.NEGATIVE_INFINITY} for an empty range
+     */
+    double max(double[] q, int fromEdge, int toEdge);
+
+    /** @return the kind of this kernel */
+    KernelType type();
+}
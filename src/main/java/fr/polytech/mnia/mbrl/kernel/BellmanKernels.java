@@ -0,0 +1,42 @@
+package fr.polytech.mnia.mbrl.kernel;
+
+import fr.polytech.mnia.Environment.CompiledMdp;
+
+/**
+ * Creates {@link BellmanKernel}s.
+ * <p>
+ * The vector kernel depends on the incubating {@code jdk.incubator.vector}
+ * module, which is only resolved when the JVM is started with
+ * {@code --add-modules jdk.incubator.vector}. It is therefore loaded
+ * reflectively, and the scalar kernel is used when it cannot be loaded.
+ * </p>
+ */
+public final class BellmanKernels {
+
+    private static final String VECTOR_KERNEL = "fr.polytech.mnia.mbrl.kernel.VectorBellmanKernel";
+
+    private BellmanKernels() {
+        // util class
+    }
+
+    /**
+     * Creates a kernel bound to a compiled model.
+     *
+     * @param mdp the compiled model
+     * @param type the requested implementation
+     * @return the kernel, scalar if the vector one is not available
+     */
+    public static BellmanKernel create(CompiledMdp mdp, KernelType type) {
+        if (type == KernelType.VECTOR) {
+            try {
+                return (BellmanKernel) Class.forName(VECTOR_KERNEL)
+                                            .getConstructor(CompiledMdp.class)
+                                            .newInstance(mdp);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("Vector API not available (" + e + "), using the scalar kernel. "
+                        + "Run the JVM with --add-modules jdk.incubator.vector");
+            }
+        }
+        return new ScalarBellmanKernel(mdp);
+    }
+}
@@ -0,0 +1,14 @@
+package fr.polytech.mnia.mbrl.kernel;
+
+/**
+ * Implementation of the {@link BellmanKernel} used by compiled solvers.
+ * <ul>
+ *   <li>{@code SCALAR}: plain Java loops.</li>
+ *   <li>{@code VECTOR}: SIMD lanes through the incubating {@code jdk.incubator.vector}
+ *       module; falls back to {@code SCALAR} when the module is not available.</li>
+ * </ul>
+ */
+public enum KernelType {
+    SCALAR,
+    VECTOR
+}
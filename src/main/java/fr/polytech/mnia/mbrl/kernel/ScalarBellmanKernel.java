@@ -0,0 +1,40 @@
+package fr.polytech.mnia.mbrl.kernel;
+
+import fr.polytech.mnia.Environment.CompiledMdp;
+
+/**
+ * Reference {@link BellmanKernel} with plain loops.
+ */
+final class ScalarBellmanKernel implements BellmanKernel {
+
+    private final int[] targets;
+    private final double[] rewards;
+
+    ScalarBellmanKernel(CompiledMdp mdp) {
+        this.targets = mdp.targets();
+        this.rewards = mdp.rewards();
+    }
+
+    @Override
+    public void qValues(double[] v, double gamma, double[] q, int fromEdge, int toEdge) {
+        for (int e = fromEdge; e < toEdge; e++) {
+            q[e] = rewards[e] + gamma * v[targets[e]];
+        }
+    }
+
+    @Override
+    public double max(double[] q, int fromEdge, int toEdge) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int e = fromEdge; e < toEdge; e++) {
+            if (q[e] > max) {
+                max = q[e];
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public KernelType type() {
+        return KernelType.SCALAR;
+    }
+}
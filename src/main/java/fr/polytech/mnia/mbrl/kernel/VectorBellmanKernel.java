@@ -0,0 +1,71 @@
+package fr.polytech.mnia.mbrl.kernel;
+
+import fr.polytech.mnia.Environment.CompiledMdp;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link BellmanKernel} using the incubating Vector API.
+ * <p>
+ * Q-values are computed a full vector of edges at a time: the values of the
+ * destinations are gathered through the targets array, multiplied by gamma
+ * and added to the rewards, with the same rounding as the scalar kernel.
+ * Maxima use a lane-wise max followed by a reduction when a range holds at
+ * least one full vector; shorter ranges and the tails use scalar code.
+ * </p>
+ * Compiling and running this class requires {@code --add-modules jdk.incubator.vector};
+ * it is only loaded reflectively by {@link BellmanKernels}.
+ */
+final class VectorBellmanKernel implements BellmanKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private final int[] targets;
+    private final double[] rewards;
+
+    public VectorBellmanKernel(CompiledMdp mdp) {
+        this.targets = mdp.targets();
+        this.rewards = mdp.rewards();
+    }
+
+    @Override
+    public void qValues(double[] v, double gamma, double[] q, int fromEdge, int toEdge) {
+        DoubleVector g = DoubleVector.broadcast(SPECIES, gamma);
+        int e = fromEdge;
+        int upper = fromEdge + SPECIES.loopBound(toEdge - fromEdge);
+        for (; e < upper; e += SPECIES.length()) {
+            DoubleVector next = DoubleVector.fromArray(SPECIES, v, 0, targets, e);
+            DoubleVector r = DoubleVector.fromArray(SPECIES, rewards, e);
+            next.mul(g).add(r).intoArray(q, e);
+        }
+        for (; e < toEdge; e++) {
+            q[e] = rewards[e] + gamma * v[targets[e]];
+        }
+    }
+
+    @Override
+    public double max(double[] q, int fromEdge, int toEdge) {
+        double max = Double.NEGATIVE_INFINITY;
+        int e = fromEdge;
+        int upper = fromEdge + SPECIES.loopBound(toEdge - fromEdge);
+        if (upper > e) {
+            DoubleVector acc = DoubleVector.fromArray(SPECIES, q, e);
+            for (e += SPECIES.length(); e < upper; e += SPECIES.length()) {
+                acc = acc.max(DoubleVector.fromArray(SPECIES, q, e));
+            }
+            max = acc.reduceLanes(VectorOperators.MAX);
+        }
+        for (; e < toEdge; e++) {
+            if (q[e] > max) {
+                max = q[e];
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public KernelType type() {
+        return KernelType.VECTOR;
+    }
+}
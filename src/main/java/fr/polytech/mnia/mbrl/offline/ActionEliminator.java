@@ -0,0 +1,118 @@
+package fr.polytech.mnia.mbrl.offline;
+
+import fr.polytech.mnia.Environment.CompiledMdp;
+
+/**
+ * Action elimination for the compiled solvers: keeps, for every state, the
+ * list of its transitions that may still be optimal.
+ * <p>
+ * A transition e of s is pruned for good once an upper bound on its optimal
+ * Q-value falls below a lower bound on V*(s). Solvers express both bounds
+ * from the Q-values they have just computed: a transition is pruned when
+ * {@code q[e] < best - gap}, where best is a lower bound on V*(s) and gap
+ * bounds how much Q*(s, e) may exceed q[e]. Two gaps are provided:
+ * </p>
+ * <ul>
+ *   <li>{@link #spanGap}: Q-values computed from a fixed V, with
+ *       c_min &lt;= TV(s) - V(s) &lt;= c_max over all states (MacQueen
+ *       bounds, as in policy improvement);</li>
+ *   <li>{@link #monotoneGap}: in-place sweeps from V = 0 in which values
+ *       never decrease, such as {@link ValueIteration}, where delta is the
+ *       largest change of the previous sweep.</li>
+ * </ul>
+ * Pruning keeps the relative order of the remaining transitions, so ties are
+ * broken as without elimination.
+ */
+final class ActionEliminator {
+
+    private final int[] offsets;
+
+    /** Remaining transitions of s: {@code edges[offsets[s] .. ends[s])}. */
+    private final int[] edges;
+    private final int[] ends;
+
+    private long eliminated;
+
+    /**
+     * @param mdp the compiled model, with every transition initially active
+     */
+    ActionEliminator(CompiledMdp mdp) {
+        this.offsets = mdp.offsets();
+        int n = mdp.size();
+        this.edges = new int[mdp.transitionCount()];
+        for (int e = 0; e < edges.length; e++) {
+            edges[e] = e;
+        }
+        this.ends = new int[n];
+        System.arraycopy(offsets, 1, ends, 0, n);
+    }
+
+    /** First position of the remaining transitions of s (see {@link #edge}). */
+    int begin(int s) {
+        return offsets[s];
+    }
+
+    /** End (exclusive) of the remaining transitions of s. */
+    int end(int s) {
+        return ends[s];
+    }
+
+    /** Transition at position k, for {@code begin(s) <= k < end(s)}. */
+    int edge(int k) {
+        return edges[k];
+    }
+
+    /**
+     * Prunes the remaining transitions e of s with {@code q[e] < best - gap}.
+     *
+     * @return the number of transitions pruned
+     */
+    int prune(int s, double[] q, double best, double gap) {
+        double threshold = best - gap;
+        int write = offsets[s];
+        for (int k = offsets[s]; k < ends[s]; k++) {
+            int e = edges[k];
+            if (!(q[e] < threshold)) {
+                edges[write++] = e;
+            }
+        }
+        int pruned = ends[s] - write;
+        ends[s] = write;
+        eliminated += pruned;
+        return pruned;
+    }
+
+    /** Number of transitions pruned so far. */
+    long eliminated() {
+        return eliminated;
+    }
+
+    /** Number of transitions in the model. */
+    int total() {
+        return edges.length;
+    }
+
+    /**
+     * Gap for Q-values computed from a fixed V, given the range
+     * [cMin, cMax] of TV - V over all states (terminal states included):
+     * V* &lt;= V + cMax / (1 - gamma) and V*(s) &gt;= TV(s) + gamma cMin / (1 - gamma).
+     */
+    static double spanGap(double gamma, double cMin, double cMax) {
+        if (gamma >= 1.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return gamma * (cMax - cMin) / (1.0 - gamma);
+    }
+
+    /**
+     * Gap for in-place sweeps with non-decreasing values starting from 0:
+     * the values stay below the fixed point, which exceeds the values of the
+     * previous sweep by at most gamma delta / (1 - gamma).
+     */
+    static double monotoneGap(double gamma, double delta) {
+        if (gamma >= 1.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return gamma * gamma * delta / (1.0 - gamma);
+    }
+}
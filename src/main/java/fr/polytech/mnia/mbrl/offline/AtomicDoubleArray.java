@@ -0,0 +1,56 @@
+package fr.polytech.mnia.mbrl.offline;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Array of doubles with atomic reads and writes, stored as raw long bits in
+ * an {@link AtomicLongArray}. Used by the solvers whose workers share one
+ * value array without locks.
+ */
+final class AtomicDoubleArray {
+
+    private final AtomicLongArray bits;
+
+    /**
+     * @param length the number of elements, all initially 0.0
+     */
+    AtomicDoubleArray(int length) {
+        this.bits = new AtomicLongArray(length);
+    }
+
+    int length() {
+        return this.bits.length();
+    }
+
+    double get(int i) {
+        return Double.longBitsToDouble(this.bits.get(i));
+    }
+
+    void set(int i, double value) {
+        this.bits.set(i, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Sets element i to {@code update} if it still holds {@code expect}
+     * (compared bit for bit).
+     *
+     * @return true if successful
+     */
+    boolean compareAndSet(int i, double expect, double update) {
+        return this.bits.compareAndSet(i, Double.doubleToRawLongBits(expect),
+                                       Double.doubleToRawLongBits(update));
+    }
+
+    /**
+     * Copies the current values into a plain array.
+     *
+     * @return a snapshot of the array
+     */
+    double[] toArray() {
+        double[] values = new double[length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = get(i);
+        }
+        return values;
+    }
+}
@@ -3,6 +3,8 @@ package fr.polytech.mnia.mbrl.offline;
 import de.prob.statespace.State;
 import de.prob.statespace.Transition;
 import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.SolverMode;
+import fr.polytech.mnia.Environment.CompiledMdp;
 import fr.polytech.mnia.Environment.Environment;
 import fr.polytech.mnia.Environment.ExplorationStrategy;
 
@@ -21,18 +23,42 @@ import java.util.*;
  * This is a model-based planner which requires an exhaustive
  * exploration of the state space via ProB, similarly to
  * {@link ValueIterationV1} and {@link PolicyIterationV1}.
+ *
+ * V_h and V_{h+1} are kept in two dense arrays that are swapped after
+ * each step. Optionally ({@link #setTimeIndexedPolicy(boolean)}), the
+ * Q-values of every step are kept as floats, so that the non-stationary
+ * optimal policy (the best action with h steps to go) can be queried.
  */
 public class BackwardInductionV1 extends Agent {
 
     /** Planning horizon (number of steps). */
     private final int horizon;
 
-    /** Final state-value function V_H(s). */
-    private Map<State, Double> vValues;
-
     /** Action-value function Q_H(s,a) for inspection/export. */
     private final Map<State, Map<Transition, Double>> qValues;
 
+    /** Whether Q_h is kept for every step h, not only h == horizon. */
+    private boolean timeIndexedPolicy;
+
+    /** Q_h per edge, stageQ[h-1][e] (only with a time-indexed policy). */
+    private float[][] stageQ;
+
+    /** Dense index, outgoing transitions and edge offsets of each state (PROB mode). */
+    private Map<State, Integer> stateIndex;
+    private List<List<Transition>> stateActions;
+    private int[] edgeOffsets;
+
+    /** Dense index of the destination (-1 if not explored) and reward of each edge (PROB mode). */
+    private int[] edgeTargets;
+    private double[] edgeRewards;
+
+    /** Compiled model (COMPILED mode) and Q_H arrays. */
+    private CompiledMdp mdp;
+    private double[] q;
+
+    /** Final state-value function V_H, by dense state index. */
+    private double[] v;
+
     public BackwardInductionV1(Environment env,
                                double gamma,
                                int horizon) {
@@ -40,23 +66,48 @@ public class BackwardInductionV1 extends Agent {
         // we can pass a dummy value such as 0.0.
         super(env, gamma, 0.0);
         this.horizon = horizon;
-        this.vValues = new HashMap<>();
         this.qValues = new HashMap<>();
     }
 
+    /**
+     * Keeps the Q-values of every horizon step, as a {@code float} per
+     * transition and step, for {@link #getQValues(State, int)} and
+     * {@link #getAction(State, int)}.
+     *
+     * @param enabled true to keep Q_h for h = 1..H (off by default)
+     */
+    public void setTimeIndexedPolicy(boolean enabled) {
+        this.timeIndexedPolicy = enabled;
+    }
+
+    /**
+     * @return the planning horizon H
+     */
+    public int getHorizon() {
+        return this.horizon;
+    }
+
     @Override
     public void learn(ExplorationStrategy strategy) {
+        if (mode == SolverMode.COMPILED) {
+            learnCompiled(env.compiledModel(strategy));
+            return;
+        }
         // Full model construction via ProB
         env.explore(strategy);
         System.out.println("Start learning (Backward Induction / Finite Horizon DP)");
         long startTime = System.nanoTime();
 
-        // Collect all reachable states
-        Set<Integer> stateIds = env.getStateIds();
+        // Collect all reachable states, with dense indices
+        int[] stateIds = env.getStateIds().ids();
         List<State> states = new ArrayList<>();
+        stateIndex = new HashMap<>();
+        stateActions = new ArrayList<>();
         for (int sID : stateIds) {
             State s = env.gState(sID);
+            stateIndex.put(s, states.size());
             states.add(s);
+            stateActions.add(s.getOutTransitions());
         }
 
         if (states.isEmpty()) {
@@ -64,38 +115,61 @@ public class BackwardInductionV1 extends Agent {
             return;
         }
 
-        // V_0(s) = 0 for all s
-        Map<State, Double> vPrev = new HashMap<>();
-        for (State s : states) {
-            vPrev.put(s, 0.0);
+        int n = states.size();
+        edgeOffsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            edgeOffsets[i + 1] = edgeOffsets[i] + stateActions.get(i).size();
+        }
+        stageQ = timeIndexedPolicy ? new float[horizon][edgeOffsets[n]] : null;
+
+        // Successors and rewards are looked up once, not at every horizon step
+        edgeTargets = new int[edgeOffsets[n]];
+        edgeRewards = new double[edgeOffsets[n]];
+        for (int i = 0; i < n; i++) {
+            State s = states.get(i);
+            List<Transition> actions = stateActions.get(i);
+            for (int k = 0; k < actions.size(); k++) {
+                Transition t = actions.get(k);
+                State sPrime = t.getDestination();
+                Integer j = stateIndex.get(sPrime);
+                edgeTargets[edgeOffsets[i] + k] = j == null ? -1 : j;
+                edgeRewards[edgeOffsets[i] + k] = env.reward(s, t, sPrime);
+            }
         }
 
+        // V_0(s) = 0 for all s
+        double[] vPrev = new double[n];
+        double[] vCurr = new double[n];
+
         // Backward induction: h = 1..H
         for (int h = 1; h <= horizon; h++) {
-            Map<State, Double> vCurr = new HashMap<>();
             double delta = 0.0;
+            float[] qStage = stageQ == null ? null : stageQ[h - 1];
 
-            for (State s : states) {
-                List<Transition> actions = s.getOutTransitions();
-                if (actions.isEmpty()) {
+            for (int i = 0; i < n; i++) {
+                int first = edgeOffsets[i];
+                int last = edgeOffsets[i + 1];
+                if (first == last) {
                     // Terminal state: horizon-limited return is zero by convention
-                    vCurr.put(s, 0.0);
+                    vCurr[i] = 0.0;
                     continue;
                 }
 
                 double maxQ = Double.NEGATIVE_INFINITY;
-                Map<Transition, Double> qForState =
-                        qValues.computeIfAbsent(s, key -> new HashMap<>());
+                // Q_H is always kept; Q_h for h < H only with a time-indexed policy
+                Map<Transition, Double> qForState = h == horizon
+                        ? qValues.computeIfAbsent(states.get(i), key -> new HashMap<>())
+                        : null;
 
-                for (Transition t : actions) {
-                    State sPrime = t.getDestination();
-                    double reward = env.reward(s, t, sPrime);
-                    double q = reward + gamma * vPrev.getOrDefault(sPrime, 0.0);
+                for (int e = first; e < last; e++) {
+                    int j = edgeTargets[e];
+                    double q = edgeRewards[e] + gamma * (j < 0 ? 0.0 : vPrev[j]);
 
-                    // On ne garde que les Q-values de la dernière étape (horizon H),
-                    // mais on peut aussi stocker pour tous les h si nécessaire.
-                    if (h == horizon) {
-                        qForState.put(t, q);
+                    if (qForState != null) {
+                        qForState.put(stateActions.get(i).get(e - first), q);
+                    }
+                    if (qStage != null) {
+                        qStage[e] = (float) q;
                     }
 
                     if (q > maxQ) {
@@ -103,35 +177,164 @@ public class BackwardInductionV1 extends Agent {
                     }
                 }
 
-                double oldV = vPrev.getOrDefault(s, 0.0);
-                vCurr.put(s, maxQ);
-                double diff = Math.abs(oldV - maxQ);
+                vCurr[i] = maxQ;
+                double diff = Math.abs(vPrev[i] - maxQ);
                 if (diff > delta) {
                     delta = diff;
                 }
             }
 
             System.out.println("Horizon step: " + h + " | max delta: " + delta);
-            vPrev = vCurr; // for next backward step
+            double[] swap = vPrev; // for next backward step
+            vPrev = vCurr;
+            vCurr = swap;
         }
 
         // Final V_H(s)
-        this.vValues = vPrev;
+        this.v = vPrev;
 
         long endTime = System.nanoTime();
         double durationInSeconds = (endTime - startTime) / 1_000_000_000.0;
         System.out.println("Execution time (Backward Induction): " + durationInSeconds + " seconds");
     }
 
+    /**
+     * Same backward recursion as {@link #learn(ExplorationStrategy)},
+     * over the compiled arrays.
+     */
+    private void learnCompiled(CompiledMdp mdp) {
+        this.mdp = mdp;
+        int n = mdp.size();
+        int[] offsets = mdp.offsets();
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        this.q = new double[mdp.transitionCount()];
+        this.stageQ = timeIndexedPolicy ? new float[horizon][mdp.transitionCount()] : null;
+        System.out.println("Start learning (Backward Induction / Finite Horizon DP)");
+        long startTime = System.nanoTime();
+
+        if (n == 0) {
+            System.out.println("No reachable states. Aborting learning.");
+            return;
+        }
+
+        // V_0(s) = 0 for all s
+        double[] vPrev = new double[n];
+        double[] vCurr = new double[n];
+
+        for (int h = 1; h <= horizon; h++) {
+            double delta = 0.0;
+            float[] qStage = stageQ == null ? null : stageQ[h - 1];
+
+            for (int s = 0; s < n; s++) {
+                if (offsets[s] == offsets[s + 1]) {
+                    // Terminal state: horizon-limited return is zero by convention
+                    vCurr[s] = 0.0;
+                    continue;
+                }
+
+                double maxQ = Double.NEGATIVE_INFINITY;
+                for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                    double qValue = rewards[e] + gamma * vPrev[targets[e]];
+                    if (h == horizon) {
+                        q[e] = qValue;
+                    }
+                    if (qStage != null) {
+                        qStage[e] = (float) qValue;
+                    }
+                    if (qValue > maxQ) {
+                        maxQ = qValue;
+                    }
+                }
+
+                vCurr[s] = maxQ;
+                double diff = Math.abs(vPrev[s] - maxQ);
+                if (diff > delta) {
+                    delta = diff;
+                }
+            }
+
+            System.out.println("Horizon step: " + h + " | max delta: " + delta);
+            double[] swap = vPrev;
+            vPrev = vCurr;
+            vCurr = swap;
+        }
+
+        this.v = vPrev;
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (Backward Induction): " + durationInSeconds + " seconds");
+    }
+
     @Override
     public Map<Transition, Double> getQValues(State s) {
+        if (mdp != null) {
+            return mdp.valuesOf(s, q);
+        }
         return qValues.getOrDefault(s, Collections.emptyMap());
     }
 
+    /**
+     * Returns Q_h(s,a), the value of each action when h steps remain.
+     * Requires {@link #setTimeIndexedPolicy(boolean)} before learning.
+     *
+     * @param s a state
+     * @param stepsToGo the number of remaining steps h, in 1..H
+     * @return the Q-values of the outgoing transitions of s
+     * @throws IllegalStateException if the time-indexed policy was not kept
+     */
+    public Map<Transition, Double> getQValues(State s, int stepsToGo) {
+        if (stageQ == null) {
+            throw new IllegalStateException("Time-indexed policy not recorded, see setTimeIndexedPolicy");
+        }
+        float[] qStage = stageQ[Math.max(1, Math.min(horizon, stepsToGo)) - 1];
+        if (mdp != null) {
+            return mdp.valuesOf(s, e -> qStage[e]);
+        }
+        Integer i = stateIndex.get(s);
+        if (i == null) {
+            return Collections.emptyMap();
+        }
+        Map<Transition, Double> values = new LinkedHashMap<>();
+        List<Transition> actions = stateActions.get(i);
+        for (int k = 0; k < actions.size(); k++) {
+            values.put(actions.get(k), (double) qStage[edgeOffsets[i] + k]);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the optimal non-stationary action: the best transition of s
+     * when h steps remain. Requires {@link #setTimeIndexedPolicy(boolean)}.
+     *
+     * @param s a state
+     * @param stepsToGo the number of remaining steps h, in 1..H
+     * @return the best transition, or null if s has none
+     */
+    public Transition getAction(State s, int stepsToGo) {
+        Transition best = null;
+        double bestQ = Double.NEGATIVE_INFINITY;
+        for (Map.Entry<Transition, Double> entry : getQValues(s, stepsToGo).entrySet()) {
+            if (best == null || entry.getValue() > bestQ) {
+                best = entry.getKey();
+                bestQ = entry.getValue();
+            }
+        }
+        return best;
+    }
+
     /**
      * Optional accessor to inspect V_H(s).
      */
     public double getValue(State s) {
-        return vValues.getOrDefault(s, 0.0);
+        if (v == null) {
+            return 0.0;
+        }
+        if (mdp != null) {
+            int i = mdp.indexOf(s);
+            return i < 0 ? 0.0 : v[i];
+        }
+        Integer i = stateIndex.get(s);
+        return i == null ? 0.0 : v[i];
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,274 @@
+package fr.polytech.mnia.mbrl.offline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleUnaryOperator;
+
+import de.prob.statespace.State;
+import de.prob.statespace.Transition;
+
+import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.Environment.CompiledMdp;
+import fr.polytech.mnia.Environment.Environment;
+import fr.polytech.mnia.Environment.ExplorationStrategy;
+
+/**
+ * Value Iteration for K configurations (discount factor, reward function)
+ * solved together.
+ * <p>
+ * Values are stored in a K-wide matrix, the K values of a state being
+ * contiguous. Each sweep goes once over the states of the compiled model
+ * and backs up the K configurations of a state together: for each
+ * transition of the state, the target and the (contiguous) row of the
+ * successor are loaded once and the running maxima of all configurations
+ * are updated from it, instead of once per separate solve. Every column follows the update of
+ * {@link ValueIteration} in COMPILED mode and is left as is once its
+ * largest change falls below teta, so it ends with the values of a separate
+ * solve; the sweeps stop when every configuration has converged.
+ * </p>
+ * The reward of a configuration is a function of the model's reward, so
+ * scaled or shaped rewards can be compared in one run. The agent always
+ * works on the compiled model (see {@link CompiledMdp}).
+ */
+public class BatchValueIteration extends Agent {
+
+    /** A discount factor and a transformation of the model's rewards. */
+    public static final class Configuration {
+        private final double gamma;
+        private final DoubleUnaryOperator reward;
+
+        private Configuration(double gamma, DoubleUnaryOperator reward) {
+            this.gamma = gamma;
+            this.reward = reward;
+        }
+
+        /** Configuration with the model's rewards. */
+        public static Configuration of(double gamma) {
+            return new Configuration(gamma, null);
+        }
+
+        /** Configuration whose rewards are {@code reward} applied to the model's rewards. */
+        public static Configuration of(double gamma, DoubleUnaryOperator reward) {
+            return new Configuration(gamma, reward);
+        }
+
+        public double gamma() {
+            return gamma;
+        }
+
+        @Override
+        public String toString() {
+            return "gamma=" + gamma;
+        }
+    }
+
+    private final List<Configuration> configurations;
+    private final int maxIterations;
+
+    /** Compiled model; values and Q-values, K per state and per transition. */
+    private CompiledMdp mdp;
+    private double[] v;
+    private double[] q;
+
+    /**
+     * @param env            the environment
+     * @param configurations the configurations to solve, at least one
+     * @param teta           convergence threshold, for every configuration
+     * @param maxIterations  maximum number of sweeps
+     */
+    public BatchValueIteration(Environment env, List<Configuration> configurations, double teta, int maxIterations) {
+        super(env, configurations.get(0).gamma(), teta);
+        this.configurations = new ArrayList<>(configurations);
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Configurations with the model's rewards and the given discount factors.
+     */
+    public BatchValueIteration(Environment env, double[] gammas, double teta, int maxIterations) {
+        this(env, ofGammas(gammas), teta, maxIterations);
+    }
+
+    private static List<Configuration> ofGammas(double[] gammas) {
+        List<Configuration> list = new ArrayList<>();
+        for (double g : gammas) {
+            list.add(Configuration.of(g));
+        }
+        return list;
+    }
+
+    @Override
+    public void learn(ExplorationStrategy strategy) {
+        this.mdp = env.compiledModel(strategy);
+        int n = mdp.size();
+        int m = mdp.transitionCount();
+        int kCount = configurations.size();
+        int[] offsets = mdp.offsets();
+        int[] targets = mdp.targets();
+        double[] modelRewards = mdp.rewards();
+        System.out.println("Start learning (Batch Value Iteration, " + kCount + " configurations: " + configurations + ")");
+        long startTime = System.nanoTime();
+
+        double[] gammas = new double[kCount];
+        double[][] rewards = new double[kCount][];
+        for (int k = 0; k < kCount; k++) {
+            Configuration configuration = configurations.get(k);
+            gammas[k] = configuration.gamma;
+            if (configuration.reward == null) {
+                rewards[k] = modelRewards; // shared by the configurations with the model's rewards
+            } else {
+                rewards[k] = new double[m];
+                for (int e = 0; e < m; e++) {
+                    rewards[k][e] = configuration.reward.applyAsDouble(modelRewards[e]);
+                }
+            }
+        }
+
+        // Columns still iterating, stored in a matrix of width activeCount
+        int[] active = new int[kCount];
+        for (int k = 0; k < kCount; k++) {
+            active[k] = k;
+        }
+        int activeCount = kCount;
+        double[] work = new double[n * kCount];
+
+        this.v = new double[n * kCount];
+        double[] deltas = new double[kCount];
+        double[] maxQ = new double[kCount];
+        double[] activeGammas = new double[kCount];
+        double[] edgeRewards = null; // rewards of the active columns, width per edge
+        int layoutWidth = -1;
+        int iteration = 0;
+        int remaining;
+        do {
+            Arrays.fill(deltas, 0.0);
+            int width = activeCount;
+            if (layoutWidth != width) {
+                layoutWidth = width;
+                edgeRewards = new double[m * width];
+                for (int a = 0; a < width; a++) {
+                    activeGammas[a] = gammas[active[a]];
+                    double[] r = rewards[active[a]];
+                    for (int e = 0; e < m; e++) {
+                        edgeRewards[e * width + a] = r[e];
+                    }
+                }
+            }
+            for (int s = 0; s < n; s++) {
+                int row = s * width;
+                System.arraycopy(work, row, maxQ, 0, width);
+                // Each edge and successor row is read once for all active columns
+                for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                    int next = targets[e] * width;
+                    int edge = e * width;
+                    for (int a = 0; a < width; a++) {
+                        double qValue = edgeRewards[edge + a] + activeGammas[a] * work[next + a];
+                        if (qValue > maxQ[a]) {
+                            maxQ[a] = qValue;
+                        }
+                    }
+                }
+                for (int a = 0; a < width; a++) {
+                    int k = active[a];
+                    deltas[k] = Math.max(deltas[k], Math.abs(work[row + a] - maxQ[a]));
+                    work[row + a] = maxQ[a];
+                }
+            }
+            double delta = 0.0;
+            remaining = 0;
+            for (int a = 0; a < width; a++) {
+                delta = Math.max(delta, deltas[active[a]]);
+                if (deltas[active[a]] > teta) {
+                    remaining++;
+                }
+            }
+            iteration++;
+            System.out.println("Iteration: " + iteration + " | delta: " + delta + " | converged: " + (kCount - remaining) + "/" + kCount);
+
+            boolean stop = iteration >= maxIterations || budget.isExhausted();
+            if (remaining < width || stop) {
+                // Store the converged columns and narrow the matrix to the others
+                int[] kept = new int[remaining];
+                int next = 0;
+                for (int a = 0; a < width; a++) {
+                    int k = active[a];
+                    if (deltas[k] > teta && !stop) {
+                        kept[next++] = a;
+                    } else {
+                        for (int s = 0; s < n; s++) {
+                            v[s * kCount + k] = work[s * width + a];
+                        }
+                    }
+                }
+                if (next > 0) {
+                    double[] narrowed = new double[n * next];
+                    for (int s = 0; s < n; s++) {
+                        for (int c = 0; c < next; c++) {
+                            narrowed[s * next + c] = work[s * width + kept[c]];
+                        }
+                    }
+                    for (int c = 0; c < next; c++) {
+                        active[c] = active[kept[c]];
+                    }
+                    work = narrowed;
+                }
+                activeCount = next;
+            }
+        } while (activeCount > 0);
+        // remaining > 0 only when the last iteration stopped columns that had not converged
+        if (remaining > 0 && budget.isExhausted() && iteration < maxIterations) {
+            System.out.println("Budget exhausted after iteration " + iteration + ".");
+        }
+
+        // Q-values induced by the final values
+        this.q = new double[m * kCount];
+        for (int s = 0; s < n; s++) {
+            for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                int next = targets[e] * kCount;
+                for (int k = 0; k < kCount; k++) {
+                    q[e * kCount + k] = rewards[k][e] + gammas[k] * v[next + k];
+                }
+            }
+        }
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (Batch VI): " + durationInSeconds + " seconds");
+    }
+
+    /** Number of configurations solved together. */
+    public int configurationCount() {
+        return configurations.size();
+    }
+
+    /** Q-values of the first configuration. */
+    @Override
+    public Map<Transition, Double> getQValues(State s) {
+        return getQValues(s, 0);
+    }
+
+    /**
+     * @param s a state
+     * @param k index of a configuration
+     * @return the Q-values of the outgoing transitions of s for configuration k
+     */
+    public Map<Transition, Double> getQValues(State s, int k) {
+        if (mdp == null || q == null) {
+            return Collections.emptyMap();
+        }
+        int kCount = configurations.size();
+        return mdp.valuesOf(s, e -> q[e * kCount + k]);
+    }
+
+    /**
+     * @param s a state
+     * @param k index of a configuration
+     * @return V(s) for configuration k, 0 if the state is not part of the model
+     */
+    public double getValue(State s, int k) {
+        int i = mdp == null ? -1 : mdp.indexOf(s);
+        return i < 0 ? 0.0 : v[i * configurations.size() + k];
+    }
+}
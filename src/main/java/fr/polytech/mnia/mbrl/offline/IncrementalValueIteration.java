@@ -3,10 +3,15 @@ package fr.polytech.mnia.mbrl.offline;
 import de.prob.statespace.State;
 import de.prob.statespace.Transition;
 import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.SolverMode;
+import fr.polytech.mnia.Environment.CompiledMdp;
 import fr.polytech.mnia.Environment.Environment;
+import fr.polytech.mnia.Environment.ExplorationBatch;
 import fr.polytech.mnia.Environment.ExplorationStrategy;
+import fr.polytech.mnia.Environment.ExplorationStream;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
 
 /**
  * An agent that implements an incremental (asynchronous) variant
@@ -42,6 +47,14 @@ public class IncrementalValueIteration extends Agent {
 
     private final Random rng;
 
+    /** Maximum wait for the next explored level in STREAMING mode. */
+    private static final long STREAM_POLL_MILLIS = 100;
+
+    /** Compiled model, V(s) and Q(s,a) arrays used in COMPILED mode. */
+    private CompiledMdp mdp;
+    private double[] v;
+    private double[] q;
+
     /**
      * Constructs an Incremental Value Iteration agent.
      *
@@ -67,13 +80,21 @@ public class IncrementalValueIteration extends Agent {
 
     @Override
     public void learn(ExplorationStrategy strategy) {
+        if (mode == SolverMode.COMPILED) {
+            learnCompiled(env.compiledModel(strategy));
+            return;
+        }
+        if (mode == SolverMode.STREAMING) {
+            learnStreaming();
+            return;
+        }
         // Explore the whole state space once using ProB
         env.explore(strategy);
         System.out.println("Start learning (Incremental Value Iteration)");
         long startTime = System.nanoTime();
 
         // Collect all reachable states
-        Set<Integer> stateIds = env.getStateIds();
+        int[] stateIds = env.getStateIds().ids();
         List<State> states = new ArrayList<>();
         for (int sID : stateIds) {
             State s = env.gState(sID);
@@ -86,6 +107,82 @@ public class IncrementalValueIteration extends Agent {
             return;
         }
 
+        iterate(states);
+
+        long endTime = System.nanoTime();
+        double durationInSeconds = (endTime - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (Incremental VI): " + durationInSeconds + " seconds");
+    }
+
+    /**
+     * Streaming variant of {@link #learn(ExplorationStrategy)}: the state
+     * space is explored on a background thread and, after each explored
+     * level, one round of random backups runs on the states explored so far,
+     * then the usual iterations run on all of them.
+     * <p>
+     * The ProB instance is left to the exploration: backups during the
+     * exploration only use the transitions of the levels and the rewards
+     * already tabulated ({@link Environment#knownReward}), and the learner
+     * blocks until the next level instead of polling.
+     * </p>
+     *
+     * @throws CancellationException if interrupted while waiting for a level
+     */
+    private void learnStreaming() {
+        ExplorationStream stream = new ExplorationStream();
+        env.exploreAsync(stream);
+        System.out.println("Start learning (Incremental Value Iteration)");
+        long startTime = System.nanoTime();
+
+        List<State> states = new ArrayList<>();
+        Map<State, List<Transition>> outgoing = new HashMap<>();
+        long backups = 0;
+        try {
+            while (!stream.isFinished()) {
+                List<ExplorationBatch> batches = stream.await(STREAM_POLL_MILLIS);
+                if (batches.isEmpty()) {
+                    continue; // no new level yet
+                }
+                for (ExplorationBatch batch : batches) {
+                    for (State s : batch.getStates()) {
+                        states.add(s);
+                        vValues.putIfAbsent(s, 0.0);
+                    }
+                    for (Transition t : batch.getTransitions()) {
+                        outgoing.computeIfAbsent(t.getSource(), key -> new ArrayList<>()).add(t);
+                    }
+                }
+                int effectiveUpdates = Math.min(updatesPerIteration, states.size());
+                for (int k = 0; k < effectiveUpdates; k++) {
+                    State s = states.get(rng.nextInt(states.size()));
+                    if (knownBackup(s, outgoing.getOrDefault(s, Collections.emptyList()))) {
+                        backups++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Streaming learning interrupted");
+            cancelled.initCause(e);
+            throw cancelled;
+        }
+        System.out.println("Backups during exploration: " + backups);
+
+        if (states.isEmpty()) {
+            System.out.println("No reachable states. Aborting learning.");
+            return;
+        }
+        iterate(states);
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (Incremental VI): " + durationInSeconds + " seconds");
+    }
+
+    /**
+     * Runs outer iterations of random backups until the largest change of
+     * an iteration falls below teta, or maxIterations is reached.
+     */
+    private void iterate(List<State> states) {
         int nStates = states.size();
         int effectiveUpdates = Math.min(updatesPerIteration, nStates);
 
@@ -98,33 +195,127 @@ public class IncrementalValueIteration extends Agent {
             // Perform a limited number of Bellman backups per outer iteration
             for (int k = 0; k < effectiveUpdates; k++) {
                 // Pick a random state to update (asynchronous scheme)
-                State s = states.get(rng.nextInt(nStates));
-                List<Transition> actions = s.getOutTransitions();
-                if (actions.isEmpty()) {
-                    // Terminal state: by convention, V(s) remains as is (often 0)
+                double diff = backup(states.get(rng.nextInt(nStates)));
+                if (diff > delta) {
+                    delta = diff;
+                }
+            }
+
+            iteration++;
+            System.out.println("Iteration: " + iteration + " | delta: " + delta);
+
+            if (iteration >= maxIterations) {
+                System.out.println("Reached maximum number of iterations.");
+                break;
+            }
+            if (delta > teta && budget.isExhausted()) {
+                System.out.println("Budget exhausted after iteration " + iteration + ".");
+                break;
+            }
+        } while (delta > teta);
+    }
+
+    /**
+     * Bellman backup of a state during a streaming exploration, over the
+     * transitions whose reward is already tabulated; no ProB call is made.
+     *
+     * @return false if no reward of s is known yet (V(s) is left as is)
+     */
+    private boolean knownBackup(State s, List<Transition> actions) {
+        double maxQ = Double.NEGATIVE_INFINITY;
+        for (Transition t : actions) {
+            State sPrime = t.getDestination();
+            double reward = env.knownReward(s, t, sPrime);
+            if (Double.isNaN(reward)) {
+                continue;
+            }
+            maxQ = Math.max(maxQ, reward + gamma * vValues.getOrDefault(sPrime, 0.0));
+        }
+        if (maxQ == Double.NEGATIVE_INFINITY) {
+            return false;
+        }
+        vValues.put(s, maxQ);
+        return true;
+    }
+
+    /**
+     * Bellman backup of a single state.
+     *
+     * @return the absolute change of V(s)
+     */
+    private double backup(State s) {
+        List<Transition> actions = s.getOutTransitions();
+        if (actions.isEmpty()) {
+            // Terminal state: by convention, V(s) remains as is (often 0)
+            return 0.0;
+        }
+
+        double oldV = vValues.getOrDefault(s, 0.0);
+        double maxQ = Double.NEGATIVE_INFINITY;
+
+        // Q-values for this state (for inspection/export)
+        Map<Transition, Double> qForState =
+                qValues.computeIfAbsent(s, key -> new HashMap<>());
+
+        for (Transition t : actions) {
+            State sPrime = t.getDestination();
+            double reward = env.reward(s, t, sPrime);
+            double q = reward + gamma * vValues.getOrDefault(sPrime, 0.0);
+            qForState.put(t, q);
+            if (q > maxQ) {
+                maxQ = q;
+            }
+        }
+
+        // Bellman backup for V(s)
+        vValues.put(s, maxQ);
+        return Math.abs(oldV - maxQ);
+    }
+
+    /**
+     * Same randomised asynchronous backups as {@link #learn(ExplorationStrategy)},
+     * over the compiled arrays.
+     */
+    private void learnCompiled(CompiledMdp mdp) {
+        this.mdp = mdp;
+        int nStates = mdp.size();
+        int[] offsets = mdp.offsets();
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        this.v = new double[nStates];
+        this.q = new double[mdp.transitionCount()];
+        System.out.println("Start learning (Incremental Value Iteration)");
+        long startTime = System.nanoTime();
+
+        if (nStates == 0) {
+            System.out.println("No reachable states. Aborting learning.");
+            return;
+        }
+
+        int effectiveUpdates = Math.min(updatesPerIteration, nStates);
+
+        int iteration = 0;
+        double delta;
+        do {
+            delta = 0.0;
+
+            for (int k = 0; k < effectiveUpdates; k++) {
+                int s = rng.nextInt(nStates);
+                if (offsets[s] == offsets[s + 1]) {
+                    // Terminal state: V(s) remains as is
                     continue;
                 }
 
-                double oldV = vValues.getOrDefault(s, 0.0);
                 double maxQ = Double.NEGATIVE_INFINITY;
-
-                // Q-values for this state (for inspection/export)
-                Map<Transition, Double> qForState =
-                        qValues.computeIfAbsent(s, key -> new HashMap<>());
-
-                for (Transition t : actions) {
-                    State sPrime = t.getDestination();
-                    double reward = env.reward(s, t, sPrime);
-                    double q = reward + gamma * vValues.getOrDefault(sPrime, 0.0);
-                    qForState.put(t, q);
-                    if (q > maxQ) {
-                        maxQ = q;
+                for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                    q[e] = rewards[e] + gamma * v[targets[e]];
+                    if (q[e] > maxQ) {
+                        maxQ = q[e];
                     }
                 }
 
-                // Bellman backup for V(s)
-                vValues.put(s, maxQ);
-                double diff = Math.abs(oldV - maxQ);
+                double diff = Math.abs(v[s] - maxQ);
+                v[s] = maxQ;
                 if (diff > delta) {
                     delta = diff;
                 }
@@ -137,15 +328,21 @@ public class IncrementalValueIteration extends Agent {
                 System.out.println("Reached maximum number of iterations.");
                 break;
             }
+            if (delta > teta && budget.isExhausted()) {
+                System.out.println("Budget exhausted after iteration " + iteration + ".");
+                break;
+            }
         } while (delta > teta);
 
-        long endTime = System.nanoTime();
-        double durationInSeconds = (endTime - startTime) / 1_000_000_000.0;
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
         System.out.println("Execution time (Incremental VI): " + durationInSeconds + " seconds");
     }
 
     @Override
     public Map<Transition, Double> getQValues(State s) {
+        if (mdp != null) {
+            return mdp.valuesOf(s, q);
+        }
         return qValues.getOrDefault(s, Collections.emptyMap());
     }
 }
\ No newline at end of file
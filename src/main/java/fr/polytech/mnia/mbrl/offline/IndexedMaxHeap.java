@@ -0,0 +1,167 @@
+package fr.polytech.mnia.mbrl.offline;
+
+import java.util.Arrays;
+
+/**
+ * Binary max-heap of dense state indices ordered by a double priority.
+ * <p>
+ * Each index is in the heap at most once: {@link #set(int, double)} inserts
+ * it or moves it up or down in place when its priority changes, so the heap
+ * never holds stale duplicates. The heap is stored in primitive arrays and
+ * does not allocate per operation (arrays grow by doubling when indices
+ * beyond the current capacity are inserted).
+ * </p>
+ */
+final class IndexedMaxHeap {
+
+    /** heap[k] is the index stored at heap position k. */
+    private int[] heap;
+
+    /** position[i] is the heap position of index i, or -1 if absent. */
+    private int[] position;
+
+    /** priority[i] is the priority of index i while it is in the heap. */
+    private double[] priority;
+
+    private int size;
+
+    /**
+     * @param capacity the expected number of indices (the heap grows beyond it)
+     */
+    IndexedMaxHeap(int capacity) {
+        int c = Math.max(1, capacity);
+        this.heap = new int[c];
+        this.position = new int[c];
+        this.priority = new double[c];
+        Arrays.fill(this.position, -1);
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    boolean contains(int index) {
+        return index < this.position.length && this.position[index] >= 0;
+    }
+
+    /** @return the highest priority */
+    double peekPriority() {
+        return this.priority[this.heap[0]];
+    }
+
+    /**
+     * Inserts an index or changes its priority.
+     *
+     * @param index a non-negative index
+     * @param p its new priority
+     */
+    void set(int index, double p) {
+        ensureCapacity(index + 1);
+        int k = this.position[index];
+        if (k < 0) {
+            k = this.size++;
+            this.heap[k] = index;
+            this.position[index] = k;
+            this.priority[index] = p;
+            siftUp(k);
+        } else {
+            double old = this.priority[index];
+            this.priority[index] = p;
+            if (p > old) {
+                siftUp(k);
+            } else if (p < old) {
+                siftDown(k);
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the index with the highest priority.
+     *
+     * @return the removed index
+     */
+    int poll() {
+        int top = this.heap[0];
+        removeAt(0);
+        return top;
+    }
+
+    /**
+     * Removes an index if present.
+     *
+     * @param index an index
+     */
+    void remove(int index) {
+        if (contains(index)) {
+            removeAt(this.position[index]);
+        }
+    }
+
+    private void removeAt(int k) {
+        int removed = this.heap[k];
+        this.position[removed] = -1;
+        this.size--;
+        if (k == this.size) {
+            return;
+        }
+        int last = this.heap[this.size];
+        this.heap[k] = last;
+        this.position[last] = k;
+        if (this.priority[last] > this.priority[removed]) {
+            siftUp(k);
+        } else {
+            siftDown(k);
+        }
+    }
+
+    private void siftUp(int k) {
+        int index = this.heap[k];
+        double p = this.priority[index];
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            int parentIndex = this.heap[parent];
+            if (this.priority[parentIndex] >= p) {
+                break;
+            }
+            this.heap[k] = parentIndex;
+            this.position[parentIndex] = k;
+            k = parent;
+        }
+        this.heap[k] = index;
+        this.position[index] = k;
+    }
+
+    private void siftDown(int k) {
+        int index = this.heap[k];
+        double p = this.priority[index];
+        int half = this.size >>> 1;
+        while (k < half) {
+            int child = 2 * k + 1;
+            int right = child + 1;
+            if (right < this.size && this.priority[this.heap[right]] > this.priority[this.heap[child]]) {
+                child = right;
+            }
+            int childIndex = this.heap[child];
+            if (p >= this.priority[childIndex]) {
+                break;
+            }
+            this.heap[k] = childIndex;
+            this.position[childIndex] = k;
+            k = child;
+        }
+        this.heap[k] = index;
+        this.position[index] = k;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= this.position.length) {
+            return;
+        }
+        int c = Math.max(capacity, 2 * this.position.length);
+        int old = this.position.length;
+        this.heap = Arrays.copyOf(this.heap, c);
+        this.position = Arrays.copyOf(this.position, c);
+        this.priority = Arrays.copyOf(this.priority, c);
+        Arrays.fill(this.position, old, c, -1);
+    }
+}
@@ -0,0 +1,164 @@
+package fr.polytech.mnia.mbrl.offline;
+
+import java.util.Collections;
+import java.util.Map;
+
+import de.prob.statespace.State;
+import de.prob.statespace.Transition;
+
+import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.Budget;
+import fr.polytech.mnia.Environment.CompiledMdp;
+import fr.polytech.mnia.Environment.Environment;
+import fr.polytech.mnia.Environment.ExplorationStrategy;
+
+/**
+ * Interval Value Iteration: an anytime solver that keeps a lower and an
+ * upper bound on V*.
+ * <p>
+ * With rewards in [rMin, rMax], the bounds start at min(0, rMin) / (1 - gamma)
+ * and max(0, rMax) / (1 - gamma) (0 for terminal states) and are both backed
+ * up with the Bellman optimality operator, in place:
+ * </p>
+ * <pre>
+ *   L(s) = max_a [ R(s,a,s') + gamma * L(s') ]   (never decreases)
+ *   U(s) = max_a [ R(s,a,s') + gamma * U(s') ]   (never increases)
+ * </pre>
+ * <p>
+ * so L &lt;= V* &lt;= U at all times. The greedy policy with respect to L
+ * satisfies V_pi &gt;= L, hence its suboptimality in s is at most
+ * U(s) - L(s): whenever learning stops, on convergence (largest gap below
+ * teta), after maxIterations or when the {@link Budget} is exhausted, the
+ * returned Q-values come with this certified gap.
+ * </p>
+ * Requires gamma &lt; 1. The agent always works on the compiled model
+ * (see {@link CompiledMdp}).
+ */
+public class IntervalValueIteration extends Agent {
+
+    private final int maxIterations;
+
+    /** Compiled model, lower and upper bounds on V*, Q-values from the lower bound. */
+    private CompiledMdp mdp;
+    private double[] lower;
+    private double[] upper;
+    private double[] q;
+
+    /** Largest gap U - L after the last sweep. */
+    private double gap = Double.POSITIVE_INFINITY;
+
+    /**
+     * @param env           the environment
+     * @param gamma         discount factor, below 1
+     * @param teta          target for the largest gap U - L
+     * @param maxIterations maximum number of sweeps
+     */
+    public IntervalValueIteration(Environment env, double gamma, double teta, int maxIterations) {
+        super(env, gamma, teta);
+        if (gamma >= 1.0) {
+            throw new IllegalArgumentException("Interval value iteration requires gamma < 1, got " + gamma);
+        }
+        this.maxIterations = maxIterations;
+    }
+
+    @Override
+    public void learn(ExplorationStrategy strategy) {
+        this.mdp = env.compiledModel(strategy);
+        int n = mdp.size();
+        int[] offsets = mdp.offsets();
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        System.out.println("Start learning (Interval Value Iteration, budget: " + budget + ")");
+        long startTime = System.nanoTime();
+
+        double rMin = 0.0;
+        double rMax = 0.0;
+        for (double r : rewards) {
+            rMin = Math.min(rMin, r);
+            rMax = Math.max(rMax, r);
+        }
+        this.lower = new double[n];
+        this.upper = new double[n];
+        for (int s = 0; s < n; s++) {
+            if (offsets[s] < offsets[s + 1]) {
+                lower[s] = rMin / (1.0 - gamma);
+                upper[s] = rMax / (1.0 - gamma);
+            }
+        }
+        int initial = mdp.initialIndex();
+
+        int iteration = 0;
+        do {
+            gap = 0.0;
+            for (int s = 0; s < n; s++) {
+                if (offsets[s] == offsets[s + 1]) {
+                    continue;
+                }
+                double bestLower = Double.NEGATIVE_INFINITY;
+                double bestUpper = Double.NEGATIVE_INFINITY;
+                for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                    int t = targets[e];
+                    bestLower = Math.max(bestLower, rewards[e] + gamma * lower[t]);
+                    bestUpper = Math.max(bestUpper, rewards[e] + gamma * upper[t]);
+                }
+                // max/min keep the bounds monotone despite rounding
+                lower[s] = Math.max(lower[s], bestLower);
+                upper[s] = Math.min(upper[s], bestUpper);
+                gap = Math.max(gap, upper[s] - lower[s]);
+            }
+            iteration++;
+            System.out.println("Iteration: " + iteration + " | gap: " + gap
+                    + (initial >= 0 ? " | initial state: [" + lower[initial] + ", " + upper[initial] + "]" : ""));
+        } while (gap > teta && iteration < maxIterations && !budget.isExhausted());
+        if (gap > teta && budget.isExhausted()) {
+            System.out.println("Budget exhausted after iteration " + iteration + ".");
+        }
+
+        // Greedy policy with respect to the lower bound
+        this.q = new double[mdp.transitionCount()];
+        for (int s = 0; s < n; s++) {
+            for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                q[e] = rewards[e] + gamma * lower[targets[e]];
+            }
+        }
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (Interval VI): " + durationInSeconds + " seconds");
+        System.out.println("Certified gap: " + gap
+                + (initial >= 0 ? " | initial state: " + (upper[initial] - lower[initial]) : ""));
+    }
+
+    /**
+     * Q-values with respect to the lower bound. Following their greedy
+     * policy from s loses at most {@link #gap(State)} compared to the optimum.
+     */
+    @Override
+    public Map<Transition, Double> getQValues(State s) {
+        if (mdp == null || q == null) {
+            return Collections.emptyMap();
+        }
+        return mdp.valuesOf(s, q);
+    }
+
+    /** @return the lower bound on V*(s), 0 if s is not part of the model */
+    public double lowerBound(State s) {
+        int i = mdp == null ? -1 : mdp.indexOf(s);
+        return i < 0 ? 0.0 : lower[i];
+    }
+
+    /** @return the upper bound on V*(s), 0 if s is not part of the model */
+    public double upperBound(State s) {
+        int i = mdp == null ? -1 : mdp.indexOf(s);
+        return i < 0 ? 0.0 : upper[i];
+    }
+
+    /** @return the certified suboptimality gap of the greedy policy in s */
+    public double gap(State s) {
+        return upperBound(s) - lowerBound(s);
+    }
+
+    /** @return the largest gap over all states after the last sweep */
+    public double gap() {
+        return gap;
+    }
+}
@@ -0,0 +1,271 @@
+package fr.polytech.mnia.mbrl.offline;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import de.prob.statespace.State;
+import de.prob.statespace.Transition;
+
+import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.Environment.CompiledMdp;
+import fr.polytech.mnia.Environment.Environment;
+import fr.polytech.mnia.Environment.ExplorationStrategy;
+
+/**
+ * Finite-horizon dynamic programming over a state space stratified in layers.
+ * <p>
+ * In many models the step at which a state can be reached is fixed: in
+ * Tic-Tac-Toe, {@code card(square)} is the number of moves played. When every
+ * transition goes from layer d to layer d+1, a state of layer d only needs
+ * V_{H-d}, so each state is backed up once, from the deepest layer up:
+ * </p>
+ * <pre>
+ *   V(s) = 0                                        if layer(s) >= H
+ *   V(s) = max_a [ R(s,a,s') + gamma * V(s') ]      otherwise
+ * </pre>
+ * <p>
+ * and V(s0) equals the V_H(s0) of {@link BackwardInductionV1} in a single
+ * pass over |S| instead of H. States of a layer are independent and are
+ * backed up in parallel.
+ * </p>
+ * Layers are given by a natural-number expression of the B machine
+ * (see {@link Environment#layersOf(String)}) or, without expression, by the
+ * breadth-first depth from the initial state, which is also used when the
+ * model has no ProB states to evaluate the expression on (loaded from the
+ * model cache or explored SHARDED). Transitions that do not go to
+ * the next layer are counted and reported, since the result is then only an
+ * approximation of backward induction. The agent always works on the
+ * compiled model (see {@link CompiledMdp}).
+ */
+public class LayeredBackwardInduction extends Agent {
+
+    /** Minimum number of states backed up by a single task. */
+    private static final int MIN_CHUNK = 512;
+
+    /** Planning horizon (number of steps). */
+    private final int horizon;
+
+    /** Expression giving the layer of a state, or null for the BFS depth. */
+    private final String layerExpression;
+
+    /** Number of worker threads. */
+    private final int parallelism;
+
+    /** Compiled model, V and Q arrays, and the layer of each state. */
+    private CompiledMdp mdp;
+    private double[] v;
+    private double[] q;
+    private int[] layer;
+
+    /**
+     * @param env the environment
+     * @param gamma the discount factor
+     * @param horizon the planning horizon H
+     * @param layerExpression natural-number B expression giving the layer of
+     *                        a state (e.g. {@code "card(square)"}), or null to
+     *                        use the breadth-first depth
+     */
+    public LayeredBackwardInduction(Environment env, double gamma, int horizon, String layerExpression) {
+        super(env, gamma, 0.0);
+        this.horizon = horizon;
+        this.layerExpression = layerExpression;
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public void learn(ExplorationStrategy strategy) {
+        this.mdp = env.compiledModel(strategy);
+        int n = mdp.size();
+        this.v = new double[n];
+        this.q = new double[mdp.transitionCount()];
+        System.out.println("Start learning (Layered Backward Induction)");
+        long startTime = System.nanoTime();
+
+        if (n == 0) {
+            System.out.println("No reachable states. Aborting learning.");
+            return;
+        }
+
+        // Cached and SHARDED models have no ProB state ids to evaluate the expression on
+        boolean byExpression = layerExpression != null && mdp.stateId(0) >= 0;
+        if (layerExpression != null && !byExpression) {
+            System.out.println("Layer expression " + layerExpression
+                    + " ignored: the model has no ProB states (cached or SHARDED), using BFS depth");
+        }
+        this.layer = byExpression ? expressionLayers() : depthLayers();
+
+        // Group states by layer (counting sort)
+        int maxLayer = 0;
+        for (int d : layer) {
+            maxLayer = Math.max(maxLayer, d);
+        }
+        int[] layerOffsets = new int[maxLayer + 2];
+        for (int d : layer) {
+            layerOffsets[d + 1]++;
+        }
+        for (int d = 0; d <= maxLayer; d++) {
+            layerOffsets[d + 1] += layerOffsets[d];
+        }
+        int[] fill = Arrays.copyOf(layerOffsets, maxLayer + 1);
+        int[] byLayer = new int[n];
+        for (int s = 0; s < n; s++) {
+            byLayer[fill[layer[s]]++] = s;
+        }
+
+        int[] offsets = mdp.offsets();
+        int[] targets = mdp.targets();
+        long irregular = 0;
+        for (int s = 0; s < n; s++) {
+            for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                if (layer[targets[e]] != layer[s] + 1) {
+                    irregular++;
+                }
+            }
+        }
+        System.out.println("Layers: " + (maxLayer + 1) + (byExpression ? " (" + layerExpression + ")" : " (BFS depth)")
+                + (irregular > 0 ? " | transitions not going to the next layer: " + irregular : ""));
+
+        // Deepest layer first; layers at or beyond the horizon keep V = 0
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (int d = Math.min(maxLayer, horizon - 1); d >= 0; d--) {
+                int from = layerOffsets[d];
+                int to = layerOffsets[d + 1];
+                if (from < to) {
+                    pool.invoke(new LayerBackup(byLayer, from, to));
+                }
+                System.out.println("Horizon step: " + (horizon - d) + " | layer: " + d + " | states: " + (to - from));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (Backward Induction): " + durationInSeconds + " seconds");
+    }
+
+    /**
+     * Layers from the layer expression. States for which it has no value
+     * (e.g. destinations left unexplored) have no transitions in the model
+     * and are put in the deepest layer.
+     */
+    private int[] expressionLayers() {
+        int[] byId = env.layersOf(layerExpression);
+        int n = mdp.size();
+        int[] layers = new int[n];
+        int deepest = 0;
+        for (int s = 0; s < n; s++) {
+            int id = mdp.stateId(s);
+            layers[s] = id >= 0 && id < byId.length ? byId[id] : -1;
+            deepest = Math.max(deepest, layers[s]);
+        }
+        for (int s = 0; s < n; s++) {
+            if (layers[s] < 0) {
+                layers[s] = deepest;
+            }
+        }
+        return layers;
+    }
+
+    /**
+     * Breadth-first depth from the initial state over the compiled
+     * transitions. States that cannot be reached from it are put in layer 0.
+     */
+    private int[] depthLayers() {
+        int n = mdp.size();
+        int[] offsets = mdp.offsets();
+        int[] targets = mdp.targets();
+        int[] depth = new int[n];
+        Arrays.fill(depth, -1);
+        int[] queue = new int[n];
+        int head = 0;
+        int tail = 0;
+        int start = Math.max(0, mdp.initialIndex());
+        depth[start] = 0;
+        queue[tail++] = start;
+        while (head < tail) {
+            int s = queue[head++];
+            for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                int t = targets[e];
+                if (depth[t] < 0) {
+                    depth[t] = depth[s] + 1;
+                    queue[tail++] = t;
+                }
+            }
+        }
+        for (int s = 0; s < n; s++) {
+            if (depth[s] < 0) {
+                depth[s] = 0;
+            }
+        }
+        return depth;
+    }
+
+    /** Backs up the states {@code byLayer[from..to)} of one layer. */
+    private final class LayerBackup extends RecursiveAction {
+        private final int[] byLayer;
+        private final int from;
+        private final int to;
+
+        LayerBackup(int[] byLayer, int from, int to) {
+            this.byLayer = byLayer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            int chunk = Math.max(MIN_CHUNK, (to - from) / (4 * parallelism) + 1);
+            if (to - from <= chunk) {
+                backup();
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new LayerBackup(byLayer, from, mid), new LayerBackup(byLayer, mid, to));
+        }
+
+        private void backup() {
+            int[] offsets = mdp.offsets();
+            int[] targets = mdp.targets();
+            double[] rewards = mdp.rewards();
+            for (int k = from; k < to; k++) {
+                int s = byLayer[k];
+                if (offsets[s] == offsets[s + 1]) {
+                    // Terminal state: horizon-limited return is zero by convention
+                    continue;
+                }
+                double maxQ = Double.NEGATIVE_INFINITY;
+                for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                    q[e] = rewards[e] + gamma * v[targets[e]];
+                    if (q[e] > maxQ) {
+                        maxQ = q[e];
+                    }
+                }
+                v[s] = maxQ;
+            }
+        }
+    }
+
+    @Override
+    public Map<Transition, Double> getQValues(State s) {
+        if (mdp == null) {
+            return Collections.emptyMap();
+        }
+        return mdp.valuesOf(s, q);
+    }
+
+    /**
+     * Returns V_{H - layer(s)}(s), the value of a state with the number of
+     * steps left at its layer.
+     *
+     * @param s a state
+     * @return its value, 0 if the state is not part of the model
+     */
+    public double getValue(State s) {
+        int i = mdp == null ? -1 : mdp.indexOf(s);
+        return i < 0 ? 0.0 : v[i];
+    }
+}
@@ -7,9 +7,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.ActionEliminationAware;
+import fr.polytech.mnia.ExactEvaluationAware;
+import fr.polytech.mnia.SolverMode;
+import fr.polytech.mnia.Environment.CompiledMdp;
 import fr.polytech.mnia.Environment.Environment;
 import fr.polytech.mnia.Environment.ExplorationStrategy;
 
@@ -31,8 +34,20 @@ import fr.polytech.mnia.Environment.ExplorationStrategy;
  * a different trade-off between computation time and quality of the value
  * estimates.
  * </p>
+ * <p>
+ * With an adaptive schedule, evalIterations is only the depth of the first
+ * evaluation phase. The depth of the next one is the number of sweeps the
+ * last phase would have needed to reach teta, estimated from the observed
+ * contraction of the sweep residuals, scaled by the fraction of states whose
+ * action did not change: many changes lead to a few sweeps (close to Value
+ * Iteration), a nearly stable policy to a full evaluation (close to Policy
+ * Iteration).
+ * </p>
+ * With {@link #setExactPolicyEvaluation(boolean)}, the truncated evaluation
+ * is replaced by the exact one of {@link PolicyGraphSolver}, which makes the
+ * agent equivalent to Policy Iteration.
  */
-public class ModifiedPolicyIteration extends Agent {
+public class ModifiedPolicyIteration extends Agent implements ActionEliminationAware, ExactEvaluationAware {
 
     /** Maximum number of outer policy-iteration loops. */
     private final int maxIterations;
@@ -43,6 +58,24 @@ public class ModifiedPolicyIteration extends Agent {
      */
     private final int evalIterations;
 
+    /** Upper bound on the depth of an adaptive evaluation phase. */
+    private static final int MAX_ADAPTIVE_SWEEPS = 1000;
+
+    /** Whether the evaluation depth adapts to the residuals and policy changes. */
+    private final boolean adaptiveEvaluation;
+
+    /**
+     * Statistics of the last phases: sweeps performed, residuals of the
+     * first and last sweeps, and number of policy changes.
+     */
+    private int sweepsDone;
+    private double firstDelta;
+    private double lastDelta;
+    private int policyChanges;
+
+    /** Whether the last evaluation phase stopped on the budget before its residual fell below teta. */
+    private boolean evaluationCutShort;
+
     /** State-value function V(s). */
     private final Map<State, Double> vValues;
 
@@ -55,6 +88,25 @@ public class ModifiedPolicyIteration extends Agent {
      */
     private final Map<State, Map<Transition, Double>> qValues;
 
+    /**
+     * Compiled counterparts used in {@link SolverMode#COMPILED} mode:
+     * V indexed by dense state, policy as an edge index (-1 for terminal
+     * states) and Q indexed by edge.
+     */
+    private CompiledMdp mdp;
+    private double[] v;
+    private int[] pi;
+    private double[] q;
+
+    /** Transitions that may still be optimal, when action elimination is enabled. */
+    private ActionEliminator eliminator;
+
+    /** Whether compiled solving prunes transitions proved suboptimal. */
+    private boolean actionElimination = false;
+
+    /** Whether each policy is evaluated by a direct solve instead of sweeps. */
+    private boolean exactPolicyEvaluation = false;
+
     /**
      * Builds a ModifiedPolicyIterationV1 agent.
      *
@@ -70,23 +122,70 @@ public class ModifiedPolicyIteration extends Agent {
                                      double teta,
                                      int maxIterations,
                                      int evalIterations) {
+        this(env, gamma, teta, maxIterations, evalIterations, false);
+    }
+
+    /**
+     * Builds a ModifiedPolicyIterationV1 agent.
+     *
+     * @param env                the environment on which to run MPI
+     * @param gamma              discount factor
+     * @param teta               convergence threshold used inside the partial
+     *                           evaluation sweeps
+     * @param maxIterations      maximum number of policy-iteration steps
+     * @param evalIterations     number of evaluation sweeps per step, or of
+     *                           the first step when adaptive
+     * @param adaptiveEvaluation whether the number of sweeps adapts to the
+     *                           residual contraction and policy changes
+     */
+    public ModifiedPolicyIteration(Environment env,
+                                     double gamma,
+                                     double teta,
+                                     int maxIterations,
+                                     int evalIterations,
+                                     boolean adaptiveEvaluation) {
         super(env, gamma, teta);
         this.maxIterations = maxIterations;
         this.evalIterations = evalIterations;
+        this.adaptiveEvaluation = adaptiveEvaluation;
         this.vValues = new HashMap<>();
         this.policy = new HashMap<>();
         this.qValues = new HashMap<>();
     }
 
+    @Override
+    public void setActionElimination(boolean actionElimination) {
+        this.actionElimination = actionElimination;
+    }
+
+    @Override
+    public boolean isActionElimination() {
+        return this.actionElimination;
+    }
+
+    @Override
+    public void setExactPolicyEvaluation(boolean exactPolicyEvaluation) {
+        this.exactPolicyEvaluation = exactPolicyEvaluation;
+    }
+
+    @Override
+    public boolean isExactPolicyEvaluation() {
+        return this.exactPolicyEvaluation;
+    }
+
     @Override
     public void learn(ExplorationStrategy strategy) {
+        if (mode == SolverMode.COMPILED) {
+            learnCompiled(env.compiledModel(strategy));
+            return;
+        }
         // Explore the whole state space using the chosen strategy
         env.explore(strategy);
         System.out.println("Start learning (Modified Policy Iteration)");
         long startTime = System.nanoTime();
 
         // Initialise a simple deterministic policy and V(s)
-        Set<Integer> stateIds = env.getStateIds();
+        int[] stateIds = env.getStateIds().ids();
         for (int sID : stateIds) {
             State s = env.gState(sID);
             List<Transition> actions = s.getOutTransitions();
@@ -99,13 +198,24 @@ public class ModifiedPolicyIteration extends Agent {
 
         // Alternate between partial policy evaluation and policy improvement
         int iteration = 0;
+        int sweeps = evalIterations;
         boolean policyStable;
         do {
-            partialPolicyEvaluation();
+            long iterationStart = System.nanoTime();
+            if (exactPolicyEvaluation) {
+                PolicyGraphSolver.solve(env, policy, gamma, vValues);
+                sweepsDone = 0;
+            } else {
+                partialPolicyEvaluation(sweeps);
+            }
             policyStable = policyImprovement();
             iteration++;
-            System.out.println("Iteration: " + iteration + " | policy stable: " + policyStable);
-        } while (!policyStable && iteration < maxIterations);
+            printIteration(iteration, policyStable, iterationStart);
+            sweeps = nextSweeps(policy.size());
+        } while (!policyStable && iteration < maxIterations && !budget.isExhausted());
+        if ((!policyStable || evaluationCutShort) && budget.isExhausted()) {
+            System.out.println("Budget exhausted after iteration " + iteration + ".");
+        }
 
         long endTime = System.nanoTime();
         double durationInSeconds = (endTime - startTime) / 1_000_000_000.0;
@@ -115,13 +225,16 @@ public class ModifiedPolicyIteration extends Agent {
     /**
      * Performs a truncated policy-evaluation phase.
      * <p>
-     * We perform at most {@code evalIterations} sweeps over the states,
+     * We perform at most {@code sweeps} sweeps over the states,
      * updating V(s) according to the current policy. Each sweep stops early
-     * if the maximum change over all V(s) falls below {@code teta}.
+     * if the maximum change over all V(s) falls below {@code teta}, or once
+     * the budget is exhausted.
      * </p>
      */
-    private void partialPolicyEvaluation() {
-        for (int k = 0; k < evalIterations; k++) {
+    private void partialPolicyEvaluation(int sweeps) {
+        sweepsDone = 0;
+        evaluationCutShort = false;
+        for (int k = 0; k < sweeps; k++) {
             double delta = 0.0;
 
             for (Map.Entry<State, Transition> entry : policy.entrySet()) {
@@ -136,11 +249,16 @@ public class ModifiedPolicyIteration extends Agent {
                 vValues.put(s, newV);
                 delta = Math.max(delta, Math.abs(oldV - newV));
             }
+            recordSweep(delta);
 
             if (delta <= teta) {
                 // V is sufficiently stable for the current policy
                 break;
             }
+            if (budget.isExhausted()) {
+                evaluationCutShort = true;
+                break;
+            }
         }
     }
 
@@ -152,6 +270,7 @@ public class ModifiedPolicyIteration extends Agent {
      */
     private boolean policyImprovement() {
         boolean stable = true;
+        policyChanges = 0;
 
         for (Map.Entry<State, Transition> entry : policy.entrySet()) {
             State s = entry.getKey();
@@ -176,14 +295,182 @@ public class ModifiedPolicyIteration extends Agent {
 
             if (bestAction != null && !bestAction.equals(oldAction)) {
                 policy.put(s, bestAction);
+                policyChanges++;
+                stable = false;
+            }
+        }
+        return stable;
+    }
+
+    /**
+     * Same alternation of truncated evaluation and improvement as
+     * {@link #learn(ExplorationStrategy)}, over the compiled arrays.
+     */
+    private void learnCompiled(CompiledMdp mdp) {
+        this.mdp = mdp;
+        int n = mdp.size();
+        int[] offsets = mdp.offsets();
+        this.v = new double[n];
+        this.pi = new int[n];
+        this.q = new double[mdp.transitionCount()];
+        this.eliminator = actionElimination ? new ActionEliminator(mdp) : null;
+        System.out.println("Start learning (Modified Policy Iteration)");
+        long startTime = System.nanoTime();
+
+        for (int s = 0; s < n; s++) {
+            // Pick the first available transition as an initial policy
+            pi[s] = offsets[s] < offsets[s + 1] ? offsets[s] : -1;
+        }
+
+        int nonTerminal = 0;
+        for (int s = 0; s < n; s++) {
+            if (pi[s] >= 0) {
+                nonTerminal++;
+            }
+        }
+
+        int iteration = 0;
+        int sweeps = evalIterations;
+        boolean policyStable;
+        do {
+            long iterationStart = System.nanoTime();
+            if (exactPolicyEvaluation) {
+                PolicyGraphSolver.solve(mdp, pi, gamma, v);
+                sweepsDone = 0;
+            } else {
+                compiledPartialPolicyEvaluation(sweeps);
+            }
+            policyStable = compiledPolicyImprovement();
+            iteration++;
+            printIteration(iteration, policyStable, iterationStart);
+            sweeps = nextSweeps(nonTerminal);
+        } while (!policyStable && iteration < maxIterations && !budget.isExhausted());
+        if ((!policyStable || evaluationCutShort) && budget.isExhausted()) {
+            System.out.println("Budget exhausted after iteration " + iteration + ".");
+        }
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (MPI): " + durationInSeconds + " seconds");
+        if (eliminator != null) {
+            System.out.println("Actions eliminated: " + eliminator.eliminated() + " of " + eliminator.total());
+        }
+    }
+
+    private void compiledPartialPolicyEvaluation(int sweeps) {
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        sweepsDone = 0;
+        evaluationCutShort = false;
+        for (int k = 0; k < sweeps; k++) {
+            double delta = 0.0;
+            for (int s = 0; s < pi.length; s++) {
+                int e = pi[s];
+                if (e < 0) continue;
+                double newV = rewards[e] + gamma * v[targets[e]];
+                delta = Math.max(delta, Math.abs(v[s] - newV));
+                v[s] = newV;
+            }
+            recordSweep(delta);
+            if (delta <= teta) {
+                break;
+            }
+            if (budget.isExhausted()) {
+                evaluationCutShort = true;
+                break;
+            }
+        }
+    }
+
+    private void recordSweep(double delta) {
+        if (sweepsDone == 0) {
+            firstDelta = delta;
+        }
+        lastDelta = delta;
+        sweepsDone++;
+    }
+
+    /**
+     * Depth of the next evaluation phase: evalIterations unless adaptive.
+     * Otherwise, the number of sweeps the last phase needed, or would have
+     * needed, to bring the residual below teta at the observed contraction
+     * rate, times the fraction of states whose action did not change.
+     *
+     * @param policyStates number of states with an action
+     */
+    private int nextSweeps(int policyStates) {
+        if (!adaptiveEvaluation || sweepsDone == 0) {
+            return evalIterations;
+        }
+        // Per-sweep contraction of the residual, gamma when not observable
+        double rho = gamma;
+        if (sweepsDone > 1 && firstDelta > 0.0 && lastDelta > 0.0) {
+            double observed = Math.pow(lastDelta / firstDelta, 1.0 / (sweepsDone - 1));
+            if (observed < 1.0) {
+                rho = observed;
+            }
+        }
+        double needed = sweepsDone;
+        if (lastDelta > teta && rho > 0.0 && rho < 1.0) {
+            needed += Math.ceil(Math.log(teta / lastDelta) / Math.log(rho));
+        }
+        double unchanged = policyStates > 0 ? 1.0 - (double) policyChanges / policyStates : 1.0;
+        long sweeps = (long) Math.ceil(needed * unchanged);
+        return (int) Math.max(1, Math.min(MAX_ADAPTIVE_SWEEPS, sweeps));
+    }
+
+    private void printIteration(int iteration, boolean policyStable, long iterationStart) {
+        double seconds = (System.nanoTime() - iterationStart) / 1_000_000_000.0;
+        System.out.println("Iteration: " + iteration + " | policy stable: " + policyStable
+                + " | sweeps: " + sweepsDone + " | changes: " + policyChanges + " | time: " + seconds + " s");
+    }
+
+    private boolean compiledPolicyImprovement() {
+        int[] offsets = mdp.offsets();
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        boolean stable = true;
+        policyChanges = 0;
+        double cMin = 0.0; // range of TV - V, terminal states included
+        double cMax = 0.0;
+        for (int s = 0; s < pi.length; s++) {
+            if (pi[s] < 0) continue;
+            double maxQ = Double.NEGATIVE_INFINITY;
+            int best = -1;
+            int from = eliminator != null ? eliminator.begin(s) : offsets[s];
+            int to = eliminator != null ? eliminator.end(s) : offsets[s + 1];
+            for (int k = from; k < to; k++) {
+                int e = eliminator != null ? eliminator.edge(k) : k;
+                q[e] = rewards[e] + gamma * v[targets[e]];
+                if (q[e] > maxQ) {
+                    maxQ = q[e];
+                    best = e;
+                }
+            }
+            cMin = Math.min(cMin, maxQ - v[s]);
+            cMax = Math.max(cMax, maxQ - v[s]);
+            if (best != pi[s]) {
+                pi[s] = best;
+                policyChanges++;
                 stable = false;
             }
         }
+        if (eliminator != null) {
+            // The greedy transition is never pruned: q[pi[s]] is the best Q-value
+            double gap = ActionEliminator.spanGap(gamma, cMin, cMax);
+            for (int s = 0; s < pi.length; s++) {
+                if (pi[s] >= 0) {
+                    eliminator.prune(s, q, q[pi[s]], gap);
+                }
+            }
+        }
         return stable;
     }
 
     @Override
     public Map<Transition, Double> getQValues(State s) {
+        if (mdp != null) {
+            return mdp.valuesOf(s, q);
+        }
         return qValues.getOrDefault(s, Collections.emptyMap());
     }
 }
\ No newline at end of file
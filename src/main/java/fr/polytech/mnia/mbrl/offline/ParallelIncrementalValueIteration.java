@@ -0,0 +1,230 @@
+package fr.polytech.mnia.mbrl.offline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.prob.statespace.State;
+import de.prob.statespace.Transition;
+
+import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.Environment.CompiledMdp;
+import fr.polytech.mnia.Environment.Environment;
+import fr.polytech.mnia.Environment.ExplorationStrategy;
+
+/**
+ * A multi-threaded, lock-free variant of {@link IncrementalValueIteration}
+ * (Hogwild-style asynchronous value iteration).
+ * <p>
+ * Worker threads run freely, without a barrier between iterations: every
+ * worker repeats rounds of updatesPerIteration backups, drawing states from
+ * its own {@link SplittableRandom} stream and writing V(s) into a shared
+ * {@link AtomicDoubleArray} without locks, so a backup may read values that
+ * other workers are updating at the same time. After each round a worker
+ * publishes the largest change of that round (its residual). Every
+ * parallelism rounds, over all workers, count as one iteration, whose
+ * delta is the maximum of the workers' latest residuals; learning stops
+ * when it falls below teta, as in the sequential agent. The work of an
+ * iteration thus grows with the number of cores.
+ * </p>
+ * The agent always works on the compiled model (see {@link CompiledMdp}).
+ */
+public class ParallelIncrementalValueIteration extends Agent {
+
+    /** Maximum number of outer iterations. */
+    private final int maxIterations;
+
+    /** Number of state updates per round of each worker. */
+    private final int updatesPerIteration;
+
+    /** Number of worker threads. */
+    private final int parallelism;
+
+    /** Seed of the workers' random streams. */
+    private final SplittableRandom rng = new SplittableRandom();
+
+    /** Compiled model, value and per-transition Q arrays. */
+    private CompiledMdp mdp;
+    private double[] v;
+    private double[] q;
+
+    /**
+     * Constructs a parallel Incremental Value Iteration agent using all
+     * available processors.
+     *
+     * @param env                 the environment (backed by ProB)
+     * @param gamma               discount factor
+     * @param teta                convergence threshold on value changes
+     * @param maxIterations       maximum number of outer iterations
+     * @param updatesPerIteration number of Bellman backups per round of each worker
+     */
+    public ParallelIncrementalValueIteration(Environment env, double gamma, double teta,
+                                             int maxIterations, int updatesPerIteration) {
+        this(env, gamma, teta, maxIterations, updatesPerIteration,
+             Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a parallel Incremental Value Iteration agent.
+     *
+     * @param env                 the environment (backed by ProB)
+     * @param gamma               discount factor
+     * @param teta                convergence threshold on value changes
+     * @param maxIterations       maximum number of outer iterations
+     * @param updatesPerIteration number of Bellman backups per round of each worker
+     * @param parallelism         number of worker threads
+     */
+    public ParallelIncrementalValueIteration(Environment env, double gamma, double teta,
+                                             int maxIterations, int updatesPerIteration,
+                                             int parallelism) {
+        super(env, gamma, teta);
+        this.maxIterations = maxIterations;
+        this.updatesPerIteration = updatesPerIteration;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    @Override
+    public void learn(ExplorationStrategy strategy) {
+        this.mdp = env.compiledModel(strategy);
+        int nStates = mdp.size();
+        System.out.println("Start learning (Parallel Incremental Value Iteration, " + parallelism + " threads)");
+        long startTime = System.nanoTime();
+
+        if (nStates == 0) {
+            System.out.println("No reachable states. Aborting learning.");
+            return;
+        }
+
+        AtomicDoubleArray values = new AtomicDoubleArray(nStates);
+        int effectiveUpdates = Math.min(updatesPerIteration, nStates);
+
+        // Latest round residual of each worker, infinite until its first round
+        AtomicDoubleArray residuals = new AtomicDoubleArray(parallelism);
+        for (int w = 0; w < parallelism; w++) {
+            residuals.set(w, Double.POSITIVE_INFINITY);
+        }
+        AtomicInteger rounds = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean();
+
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try {
+            // One independent random stream per worker
+            List<Future<?>> runs = new ArrayList<>();
+            for (int w = 0; w < parallelism; w++) {
+                int worker = w;
+                SplittableRandom random = rng.split();
+                runs.add(pool.submit(() -> work(worker, values, random, effectiveUpdates, residuals, rounds, stop)));
+            }
+            for (Future<?> run : runs) {
+                run.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Parallel incremental value iteration interrupted");
+            cancelled.initCause(e);
+            throw cancelled;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Parallel incremental value iteration failed", e.getCause());
+        } finally {
+            stop.set(true);
+            pool.shutdown();
+        }
+
+        // Final values and the Q-values they induce
+        this.v = values.toArray();
+        this.q = new double[mdp.transitionCount()];
+        int[] offsets = mdp.offsets();
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        for (int s = 0; s < nStates; s++) {
+            for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                q[e] = rewards[e] + gamma * v[targets[e]];
+            }
+        }
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (Parallel Incremental VI): " + durationInSeconds + " seconds");
+    }
+
+    /**
+     * Worker loop: runs rounds of {@code count} backups until another worker
+     * (or this one) decides to stop. The worker completing the last round of
+     * an iteration reports it and checks the stopping conditions.
+     */
+    private void work(int worker, AtomicDoubleArray values, SplittableRandom random, int count,
+                      AtomicDoubleArray residuals, AtomicInteger rounds, AtomicBoolean stop) {
+        while (!stop.get()) {
+            residuals.set(worker, sweep(values, random, count));
+            int round = rounds.incrementAndGet();
+            if (round % parallelism != 0) {
+                continue;
+            }
+
+            int iteration = round / parallelism;
+            double delta = 0.0;
+            for (int w = 0; w < parallelism; w++) {
+                delta = Math.max(delta, residuals.get(w));
+            }
+            System.out.println("Iteration: " + iteration + " | delta: " + delta);
+
+            if (delta <= teta) {
+                stop.set(true);
+            } else if (iteration >= maxIterations) {
+                System.out.println("Reached maximum number of iterations.");
+                stop.set(true);
+            } else if (budget.isExhausted()) {
+                System.out.println("Budget exhausted after iteration " + iteration + ".");
+                stop.set(true);
+            }
+        }
+    }
+
+    /**
+     * Backs up {@code count} random states and returns the largest change
+     * (the worker's residual for this round).
+     */
+    private double sweep(AtomicDoubleArray values, SplittableRandom random, int count) {
+        int[] offsets = mdp.offsets();
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        int nStates = mdp.size();
+        double residual = 0.0;
+        for (int k = 0; k < count; k++) {
+            int s = random.nextInt(nStates);
+            if (offsets[s] == offsets[s + 1]) {
+                // Terminal state: V(s) remains as is
+                continue;
+            }
+            double maxQ = Double.NEGATIVE_INFINITY;
+            for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                double qValue = rewards[e] + gamma * values.get(targets[e]);
+                if (qValue > maxQ) {
+                    maxQ = qValue;
+                }
+            }
+            double diff = Math.abs(values.get(s) - maxQ);
+            values.set(s, maxQ);
+            if (diff > residual) {
+                residual = diff;
+            }
+        }
+        return residual;
+    }
+
+    @Override
+    public Map<Transition, Double> getQValues(State s) {
+        if (mdp == null || q == null) {
+            return Collections.emptyMap();
+        }
+        return mdp.valuesOf(s, q);
+    }
+}
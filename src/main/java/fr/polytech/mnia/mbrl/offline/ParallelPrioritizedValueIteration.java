@@ -0,0 +1,320 @@
+package fr.polytech.mnia.mbrl.offline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+import de.prob.statespace.State;
+import de.prob.statespace.Transition;
+
+import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.Environment.CompiledMdp;
+import fr.polytech.mnia.Environment.Environment;
+import fr.polytech.mnia.Environment.ExplorationStrategy;
+
+/**
+ * A multi-threaded variant of {@link PrioritizedValueIterationV1}.
+ * <p>
+ * Priorities are approximate: states are kept in bucket queues of state
+ * indices, one per power of two of their Bellman error relative to teta. Worker
+ * threads repeatedly take a state from the highest non-empty bucket, back
+ * it up in a shared {@link AtomicDoubleArray} with a compare-and-set, and
+ * requeue the predecessors whose error reaches teta. After each write
+ * attempt the error of the state itself is checked again, so a backup
+ * computed from successor values that changed meanwhile (or lost to a
+ * concurrent backup) cannot leave it above teta. A state is queued at most once
+ * per bucket level: it is only queued again when its error moves it to a
+ * higher bucket, and the older entry is then skipped. Workers that find every
+ * bucket empty while others are still busy back off, parking for longer and
+ * longer, instead of spinning.
+ * </p>
+ * Learning stops when no state is queued any more, or after maxUpdates
+ * backups. The agent always works on the compiled model
+ * (see {@link CompiledMdp}).
+ */
+public class ParallelPrioritizedValueIteration extends Agent {
+
+    /** Number of priority buckets; errors beyond teta * 2^(BUCKETS-2) share the top one. */
+    private static final int BUCKETS = 64;
+
+    /** Bounds of the park time of idle workers, in nanoseconds. */
+    private static final long MIN_IDLE_NANOS = 1_000L;
+    private static final long MAX_IDLE_NANOS = 1_000_000L;
+
+    /** Maximum number of state updates over all workers. */
+    private final int maxUpdates;
+
+    /** Number of worker threads. */
+    private final int parallelism;
+
+    /** Compiled model, value and per-transition Q arrays. */
+    private CompiledMdp mdp;
+    private double[] v;
+    private double[] q;
+
+    /** Shared state during learning. */
+    private AtomicDoubleArray values;
+    private List<IntQueue> buckets;
+    private AtomicIntegerArray queuedBucket;
+    private AtomicInteger pending;
+    private AtomicInteger updates;
+
+    /**
+     * Creates a parallel prioritized sweeping agent using all available processors.
+     *
+     * @param env        the environment (backed by ProB)
+     * @param gamma      discount factor
+     * @param teta       threshold on Bellman error for stopping
+     * @param maxUpdates safety bound on the number of updates
+     */
+    public ParallelPrioritizedValueIteration(Environment env, double gamma, double teta, int maxUpdates) {
+        this(env, gamma, teta, maxUpdates, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a parallel prioritized sweeping agent.
+     *
+     * @param env         the environment (backed by ProB)
+     * @param gamma       discount factor
+     * @param teta        threshold on Bellman error for stopping
+     * @param maxUpdates  safety bound on the number of updates
+     * @param parallelism number of worker threads
+     */
+    public ParallelPrioritizedValueIteration(Environment env, double gamma, double teta, int maxUpdates,
+                                             int parallelism) {
+        super(env, gamma, teta);
+        this.maxUpdates = maxUpdates;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    @Override
+    public void learn(ExplorationStrategy strategy) {
+        this.mdp = env.compiledModel(strategy);
+        int n = mdp.size();
+        mdp.predecessorOffsets(); // build the reverse CSR before the workers share it
+
+        System.out.println("Start learning (Parallel Prioritized Value Iteration, " + parallelism + " threads)");
+        long startTime = System.nanoTime();
+
+        this.values = new AtomicDoubleArray(n);
+        this.buckets = new ArrayList<>(BUCKETS);
+        for (int b = 0; b < BUCKETS; b++) {
+            buckets.add(new IntQueue());
+        }
+        this.queuedBucket = new AtomicIntegerArray(n);
+        for (int s = 0; s < n; s++) {
+            queuedBucket.set(s, -1);
+        }
+        this.pending = new AtomicInteger();
+        this.updates = new AtomicInteger();
+
+        for (int s = 0; s < n; s++) {
+            double error = bellmanError(s);
+            if (error >= teta) {
+                enqueue(s, error);
+            }
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<?>> runs = new ArrayList<>();
+            for (int w = 0; w < parallelism; w++) {
+                runs.add(workers.submit(this::work));
+            }
+            for (Future<?> run : runs) {
+                run.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Parallel prioritized sweeping interrupted");
+            cancelled.initCause(e);
+            throw cancelled;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Parallel prioritized sweeping failed", e.getCause());
+        } finally {
+            // Interrupts the workers if learning was interrupted; no-op otherwise
+            workers.shutdownNow();
+        }
+
+        // Final values and the Q-values they induce
+        this.v = values.toArray();
+        this.q = new double[mdp.transitionCount()];
+        int[] offsets = mdp.offsets();
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        for (int s = 0; s < n; s++) {
+            for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                q[e] = rewards[e] + gamma * v[targets[e]];
+            }
+        }
+        this.values = null;
+        this.buckets = null;
+        this.queuedBucket = null;
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (Parallel Prioritized VI): " + durationInSeconds + " seconds");
+        System.out.println("Total updates performed: " + updates.get());
+    }
+
+    /** Worker loop: back up queued states until none is left or the budget is spent. */
+    private void work() {
+        int[] predOffsets = mdp.predecessorOffsets();
+        int[] predEdges = mdp.predecessorEdges();
+        int[] sources = mdp.sources();
+
+        long idleNanos = 0L;
+        while (pending.get() > 0 && updates.get() < maxUpdates && !budget.isExhausted()
+                && !Thread.currentThread().isInterrupted()) {
+            int bucket = BUCKETS - 1;
+            int s = -1;
+            for (; bucket >= 0 && s < 0; bucket--) {
+                s = buckets.get(bucket).poll();
+            }
+            if (s < 0) {
+                // Other workers are still processing states and may requeue some
+                idleNanos = idleNanos == 0L ? MIN_IDLE_NANOS : Math.min(MAX_IDLE_NANOS, 2 * idleNanos);
+                LockSupport.parkNanos(idleNanos);
+                continue;
+            }
+            idleNanos = 0L;
+            bucket++;
+
+            // Skip entries superseded by a higher bucket; otherwise unqueue s
+            if (queuedBucket.compareAndSet(s, bucket, -1)) {
+                double oldV = values.get(s);
+                double newV = backup(s);
+                if (newV != oldV) {
+                    // Fails when another worker backed s up meanwhile, possibly with fresher values
+                    if (values.compareAndSet(s, oldV, newV)) {
+                        int count = updates.incrementAndGet();
+                        if (count % 10_000 == 0) {
+                            System.out.println("Update " + count + " | last delta: " + Math.abs(newV - oldV));
+                        }
+                        for (int k = predOffsets[s]; k < predOffsets[s + 1]; k++) {
+                            int sPred = sources[predEdges[k]];
+                            double errPred = bellmanError(sPred);
+                            if (errPred >= teta) {
+                                enqueue(sPred, errPred);
+                            }
+                        }
+                    }
+                    // newV may come from successor values changed during the
+                    // backup, whose workers saw the old V(s): check s again
+                    double error = bellmanError(s);
+                    if (error >= teta) {
+                        enqueue(s, error);
+                    }
+                }
+            }
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Queues a state in the bucket of its error, unless it is already queued
+     * in that bucket or a higher one.
+     */
+    private void enqueue(int s, double error) {
+        int bucket = bucketOf(error);
+        while (true) {
+            int current = queuedBucket.get(s);
+            if (current >= bucket) {
+                return;
+            }
+            if (queuedBucket.compareAndSet(s, current, bucket)) {
+                pending.incrementAndGet();
+                buckets.get(bucket).add(s);
+                return;
+            }
+        }
+    }
+
+    /** Bucket of an error >= teta: 0 for [teta, 2 teta), 1 for [2 teta, 4 teta), ... */
+    private int bucketOf(double error) {
+        double ratio = teta > 0.0 ? error / teta : error;
+        int exponent = ratio >= 1.0 ? Math.getExponent(ratio) : 0;
+        return Math.min(BUCKETS - 1, exponent);
+    }
+
+    private double backup(int s) {
+        int[] offsets = mdp.offsets();
+        if (offsets[s] == offsets[s + 1]) {
+            return values.get(s);
+        }
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        double maxQ = Double.NEGATIVE_INFINITY;
+        for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+            double qValue = rewards[e] + gamma * values.get(targets[e]);
+            if (qValue > maxQ) {
+                maxQ = qValue;
+            }
+        }
+        return maxQ;
+    }
+
+    private double bellmanError(int s) {
+        int[] offsets = mdp.offsets();
+        if (offsets[s] == offsets[s + 1]) {
+            return 0.0;
+        }
+        return Math.abs(values.get(s) - backup(s));
+    }
+
+    @Override
+    public Map<Transition, Double> getQValues(State s) {
+        if (mdp == null || q == null) {
+            return Collections.emptyMap();
+        }
+        return mdp.valuesOf(s, q);
+    }
+
+    /**
+     * FIFO queue of state indices in a growable ring buffer, guarded by its
+     * monitor. The size is volatile so that empty buckets are skipped
+     * without locking.
+     */
+    private static final class IntQueue {
+        private int[] items = new int[16];
+        private int head;
+        private volatile int size;
+
+        synchronized void add(int s) {
+            if (size == items.length) {
+                int[] grown = new int[2 * items.length];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = items[(head + i) % items.length];
+                }
+                items = grown;
+                head = 0;
+            }
+            items[(head + size) % items.length] = s;
+            size++;
+        }
+
+        /** @return the oldest state index, or -1 if the queue is empty */
+        int poll() {
+            if (size == 0) {
+                return -1;
+            }
+            synchronized (this) {
+                if (size == 0) {
+                    return -1;
+                }
+                int s = items[head];
+                head = (head + 1) % items.length;
+                size--;
+                return s;
+            }
+        }
+    }
+}
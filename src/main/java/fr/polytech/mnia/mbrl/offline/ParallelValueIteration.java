@@ -0,0 +1,184 @@
+package fr.polytech.mnia.mbrl.offline;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import de.prob.statespace.State;
+import de.prob.statespace.Transition;
+
+import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.KernelAware;
+import fr.polytech.mnia.Environment.CompiledMdp;
+import fr.polytech.mnia.Environment.Environment;
+import fr.polytech.mnia.Environment.ExplorationStrategy;
+import fr.polytech.mnia.mbrl.kernel.BellmanKernel;
+import fr.polytech.mnia.mbrl.kernel.BellmanKernels;
+import fr.polytech.mnia.mbrl.kernel.KernelType;
+
+/**
+ * A Value Iteration agent whose sweeps run in parallel on a {@link ForkJoinPool}.
+ * <p>
+ * Unlike {@link ValueIteration}, which updates V(s) in place (Gauss-Seidel),
+ * each sweep is synchronous (Jacobi): all backups read the values of the
+ * previous sweep from one array and write to another, so the state range
+ * can be split into independent chunks. The largest change of a sweep is
+ * reduced along the fork/join tree.
+ * </p>
+ * The agent always solves the compiled model (see {@link CompiledMdp}),
+ * whatever the solver mode: ProB states cannot be shared between workers.
+ */
+public class ParallelValueIteration extends Agent implements KernelAware {
+
+    /** Minimum number of states backed up by a single task. */
+    private static final int MIN_CHUNK = 1024;
+
+    /** Maximum number of iterations to perform. */
+    private final int maxIterations;
+
+    /** Number of worker threads. */
+    private final int parallelism;
+
+    /** Compiled model, value and per-transition Q arrays. */
+    private CompiledMdp mdp;
+    private double[] v;
+    private double[] q;
+
+    /** Bellman kernel bound to the compiled model, selected by {@link #setKernel}. */
+    private BellmanKernel bellman;
+
+    /** Bellman kernel of the compiled backups. */
+    private KernelType kernel = KernelType.SCALAR;
+
+    /**
+     * Constructs a parallel Value Iteration agent using all available processors.
+     *
+     * @param env the environment in which the agent learns
+     * @param gamma the discount factor (typically between 0 and 1)
+     * @param teta the threshold for convergence (minimum delta)
+     * @param maxIterations the maximum number of iterations allowed
+     */
+    public ParallelValueIteration(Environment env, double gamma, double teta, int maxIterations) {
+        this(env, gamma, teta, maxIterations, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a parallel Value Iteration agent.
+     *
+     * @param env the environment in which the agent learns
+     * @param gamma the discount factor (typically between 0 and 1)
+     * @param teta the threshold for convergence (minimum delta)
+     * @param maxIterations the maximum number of iterations allowed
+     * @param parallelism the number of worker threads
+     */
+    public ParallelValueIteration(Environment env, double gamma, double teta, int maxIterations,
+                                  int parallelism) {
+        super(env, gamma, teta);
+        this.maxIterations = maxIterations;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    @Override
+    public void setKernel(KernelType kernel) {
+        this.kernel = kernel;
+    }
+
+    @Override
+    public KernelType getKernel() {
+        return this.kernel;
+    }
+
+    @Override
+    public void learn(ExplorationStrategy eStrategy) {
+        this.mdp = env.compiledModel(eStrategy);
+        int n = mdp.size();
+        double[] current = new double[n];
+        double[] next = new double[n];
+        this.q = new double[mdp.transitionCount()];
+        this.bellman = BellmanKernels.create(mdp, kernel);
+
+        // Enough chunks per worker to balance states with different branching
+        int chunk = Math.max(MIN_CHUNK, n / (8 * parallelism));
+
+        System.out.println("Start learning (Parallel Value Iteration, " + parallelism + " threads, "
+                + bellman.type() + " kernel)");
+        long startTime = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            int iteration = 0;
+            double delta;
+            do {
+                delta = n == 0 ? 0.0 : pool.invoke(new Sweep(current, next, 0, n, chunk));
+                double[] swap = current;
+                current = next;
+                next = swap;
+                iteration++;
+                System.out.println("Iteration: " + iteration + " | delta: " + delta);
+            } while (delta > teta && iteration < maxIterations && !budget.isExhausted());
+            if (delta > teta && budget.isExhausted()) {
+                System.out.println("Budget exhausted after iteration " + iteration + ".");
+            }
+        } finally {
+            pool.shutdown();
+        }
+        this.v = current;
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time: " + durationInSeconds + " seconds");
+    }
+
+    /**
+     * Backs up the states of {@code [from, to)}, reading {@code current} and
+     * writing {@code next}, and returns the largest change. Same backup as
+     * {@link ValueIteration}.
+     */
+    private final class Sweep extends RecursiveTask<Double> {
+        private final double[] current;
+        private final double[] next;
+        private final int from;
+        private final int to;
+        private final int chunk;
+
+        Sweep(double[] current, double[] next, int from, int to, int chunk) {
+            this.current = current;
+            this.next = next;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected Double compute() {
+            if (to - from <= chunk) {
+                return backup();
+            }
+            int mid = (from + to) >>> 1;
+            Sweep left = new Sweep(current, next, from, mid, chunk);
+            left.fork();
+            double right = new Sweep(current, next, mid, to, chunk).compute();
+            return Math.max(left.join(), right);
+        }
+
+        private double backup() {
+            int[] offsets = mdp.offsets();
+            // Q-values of the whole chunk in one pass over its contiguous edges
+            bellman.qValues(current, gamma, q, offsets[from], offsets[to]);
+            double delta = 0.0;
+            for (int s = from; s < to; s++) {
+                double maxQ = Math.max(current[s], bellman.max(q, offsets[s], offsets[s + 1]));
+                next[s] = maxQ;
+                delta = Math.max(delta, Math.abs(current[s] - maxQ));
+            }
+            return delta;
+        }
+    }
+
+    @Override
+    public Map<Transition, Double> getQValues(State s) {
+        if (this.mdp == null) {
+            return Collections.emptyMap();
+        }
+        return this.mdp.valuesOf(s, this.q);
+    }
+}
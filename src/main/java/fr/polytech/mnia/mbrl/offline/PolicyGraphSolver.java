@@ -0,0 +1,158 @@
+package fr.polytech.mnia.mbrl.offline;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.prob.statespace.State;
+import de.prob.statespace.Transition;
+
+import fr.polytech.mnia.Environment.CompiledMdp;
+import fr.polytech.mnia.Environment.Environment;
+
+/**
+ * Exact evaluation of a deterministic policy.
+ * <p>
+ * With deterministic transitions, the evaluation of a policy is the linear
+ * system (I - gamma P_pi) V = R_pi in which P_pi has a single non-zero entry
+ * per row: V(s) = r(s) + gamma V(next(s)). The policy graph is functional
+ * (every state has one successor), so each of its components is a set of
+ * trees leading either to a state without successor or to a single cycle.
+ * The system is then solved directly, in O(|S|):
+ * </p>
+ * <ul>
+ *   <li>the first state c_0 of a cycle c_0 .. c_{L-1} has the closed form
+ *       V(c_0) = sum_i gamma^i r(c_i) / (1 - gamma^L), and the other states
+ *       of the cycle follow backwards;</li>
+ *   <li>every other state is solved after its successor, which is a
+ *       triangular solve in reverse topological order (the whole solve when
+ *       the policy graph is acyclic).</li>
+ * </ul>
+ * Cycles require gamma &lt; 1.
+ */
+final class PolicyGraphSolver {
+
+    private static final byte UNSOLVED = 0;
+    private static final byte ON_PATH = 1;
+    private static final byte SOLVED = 2;
+
+    private PolicyGraphSolver() {
+    }
+
+    /**
+     * Evaluates a policy of the compiled model.
+     *
+     * @param mdp   the compiled model
+     * @param pi    transition chosen in each state, -1 for terminal states
+     * @param gamma discount factor
+     * @param v     receives V_pi, indexed by dense state
+     */
+    static void solve(CompiledMdp mdp, int[] pi, double gamma, double[] v) {
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        int[] next = new int[pi.length];
+        double[] reward = new double[pi.length];
+        for (int s = 0; s < pi.length; s++) {
+            int e = pi[s];
+            next[s] = e >= 0 ? targets[e] : -1;
+            reward[s] = e >= 0 ? rewards[e] : 0.0;
+        }
+        solve(next, reward, gamma, v);
+    }
+
+    /**
+     * Evaluates a policy given as a map, with one reward query per state.
+     * Destinations without an action in the policy have value 0.
+     *
+     * @param env     the environment giving the rewards
+     * @param policy  the transition chosen in each non-terminal state
+     * @param gamma   discount factor
+     * @param vValues receives V_pi for the states of the policy
+     */
+    static void solve(Environment env, Map<State, Transition> policy, double gamma, Map<State, Double> vValues) {
+        int n = policy.size();
+        State[] states = new State[n];
+        Map<State, Integer> index = new HashMap<>(2 * n);
+        for (State s : policy.keySet()) {
+            states[index.size()] = s;
+            index.put(s, index.size());
+        }
+        int[] next = new int[n];
+        double[] reward = new double[n];
+        for (int i = 0; i < n; i++) {
+            Transition t = policy.get(states[i]);
+            State sPrime = t.getDestination();
+            next[i] = index.getOrDefault(sPrime, -1);
+            reward[i] = env.reward(states[i], t, sPrime);
+        }
+        double[] v = new double[n];
+        solve(next, reward, gamma, v);
+        for (int i = 0; i < n; i++) {
+            vValues.put(states[i], v[i]);
+        }
+    }
+
+    /**
+     * Solves V(s) = r[s] + gamma V(next[s]), with V(s) = r[s] when
+     * {@code next[s] < 0}.
+     *
+     * @param next   successor of each state under the policy, or -1
+     * @param reward reward of the policy's transition of each state
+     * @param gamma  discount factor
+     * @param v      receives the values, of length {@code next.length}
+     */
+    static void solve(int[] next, double[] reward, double gamma, double[] v) {
+        int n = next.length;
+        byte[] status = new byte[n];
+        int[] path = new int[n];
+
+        for (int start = 0; start < n; start++) {
+            if (status[start] != UNSOLVED) {
+                continue;
+            }
+            // Follow the policy until a solved state, a state without
+            // successor or a state of the current path (a cycle)
+            int length = 0;
+            int s = start;
+            while (s >= 0 && status[s] == UNSOLVED) {
+                status[s] = ON_PATH;
+                path[length++] = s;
+                s = next[s];
+            }
+
+            if (s >= 0 && status[s] == ON_PATH) {
+                int cycleStart = length - 1;
+                while (path[cycleStart] != s) {
+                    cycleStart--;
+                }
+                solveCycle(path, cycleStart, length, next, reward, gamma, v, status);
+                length = cycleStart;
+            }
+
+            // Tree part, from the state closest to the solved end
+            for (int k = length - 1; k >= 0; k--) {
+                int u = path[k];
+                v[u] = next[u] < 0 ? reward[u] : reward[u] + gamma * v[next[u]];
+                status[u] = SOLVED;
+            }
+        }
+    }
+
+    /** Solves the cycle {@code path[from .. to)}, in which path[k] leads to path[k + 1] and path[to - 1] to path[from]. */
+    private static void solveCycle(int[] path, int from, int to, int[] next, double[] reward,
+                                   double gamma, double[] v, byte[] status) {
+        double sum = 0.0;
+        double discount = 1.0;
+        for (int k = from; k < to; k++) {
+            sum += discount * reward[path[k]];
+            discount *= gamma;
+        }
+        int head = path[from];
+        v[head] = sum / (1.0 - discount);
+        status[head] = SOLVED;
+        for (int k = to - 1; k > from; k--) {
+            int u = path[k];
+            v[u] = reward[u] + gamma * v[next[u]];
+            status[u] = SOLVED;
+        }
+    }
+}
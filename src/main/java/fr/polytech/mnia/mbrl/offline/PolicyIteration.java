@@ -6,71 +6,196 @@ import de.prob.statespace.Transition;
 import java.util.*;
 
 import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.ActionEliminationAware;
+import fr.polytech.mnia.ExactEvaluationAware;
+import fr.polytech.mnia.SolverMode;
+import fr.polytech.mnia.Environment.CompiledMdp;
 import fr.polytech.mnia.Environment.Environment;
 import fr.polytech.mnia.Environment.ExplorationStrategy;
 
 /**
  * An agent that implements Policy Iteration for solving MDPs.
  * Iteratively evaluates and improves a policy until convergence.
+ * <p>
+ * Policy evaluation is incremental: only the states whose action changed in
+ * the last improvement step are backed up first, and a state whose value
+ * has drifted by more than teta since it last notified its predecessors
+ * puts back in the worklist the states whose policy leads to it. Small
+ * changes thus accumulate until they matter instead of being dropped, and
+ * the evaluation ends with every residual of order gamma * teta, as a full
+ * sweep would. After the first evaluation, the cost of an iteration's
+ * evaluation depends on the size of the policy change rather than |S|.
+ * </p>
+ * With {@link #setExactPolicyEvaluation(boolean)}, each policy is instead
+ * evaluated exactly by {@link PolicyGraphSolver}.
  */
-public class PolicyIteration extends Agent {
+public class PolicyIteration extends Agent implements ActionEliminationAware, ExactEvaluationAware {
+
+    /** Worklist pops between two checks of the budget during an evaluation. */
+    private static final int BUDGET_CHECK_INTERVAL = 4096;
 
     private final int maxIterations;
     private Map<State, Double> vValues;
     private Map<State, Transition> policy;
     private Map<State, Map<Transition, Double>> qValues;
 
+    /** States whose policy leads to a given state, and states to re-evaluate. */
+    private Map<State, Set<State>> policyPredecessors;
+    private Deque<State> dirty;
+    private Set<State> queued;
+
+    /** Value of each state when it last notified its predecessors. */
+    private Map<State, Double> propagated;
+
+    /** Whether the last evaluation stopped on the budget with states left to re-evaluate. */
+    private boolean evaluationCutShort;
+
+    /** Compiled model, values, policy (edge index, -1 for terminal states) and Q array. */
+    private CompiledMdp mdp;
+    private double[] v;
+    private int[] pi;
+    private double[] q;
+
+    /** Transitions that may still be optimal, when action elimination is enabled. */
+    private ActionEliminator eliminator;
+
+    /** Whether compiled solving prunes transitions proved suboptimal. */
+    private boolean actionElimination = false;
+
+    /** Whether each policy is evaluated by a direct solve instead of sweeps. */
+    private boolean exactPolicyEvaluation = false;
+
+    /** Worklist of states to re-evaluate (ring buffer) and membership flags. */
+    private int[] worklist;
+    private int worklistHead;
+    private int worklistSize;
+    private boolean[] inWorklist;
+
+    /** Value of each state when it last notified its predecessors (compiled). */
+    private double[] lastPropagated;
+
     public PolicyIteration(Environment env, double gamma, double teta, int maxIterations) {
         super(env, gamma, teta);
         this.maxIterations = maxIterations;
         this.vValues = new HashMap<>();
         this.policy = new HashMap<>();
         this.qValues = new HashMap<>();
+        this.policyPredecessors = new HashMap<>();
+        this.dirty = new ArrayDeque<>();
+        this.queued = new HashSet<>();
+        this.propagated = new HashMap<>();
+    }
+
+    @Override
+    public void setActionElimination(boolean actionElimination) {
+        this.actionElimination = actionElimination;
+    }
+
+    @Override
+    public boolean isActionElimination() {
+        return this.actionElimination;
+    }
+
+    @Override
+    public void setExactPolicyEvaluation(boolean exactPolicyEvaluation) {
+        this.exactPolicyEvaluation = exactPolicyEvaluation;
+    }
+
+    @Override
+    public boolean isExactPolicyEvaluation() {
+        return this.exactPolicyEvaluation;
     }
 
     @Override
     public void learn(ExplorationStrategy strategy) {
+        if (mode == SolverMode.COMPILED) {
+            learnCompiled(env.compiledModel(strategy));
+            return;
+        }
         env.explore(strategy);
         System.out.println("Start learning");long startTime = System.nanoTime();   
 
-        Set<Integer> stateIds = env.getStateIds();
+        int[] stateIds = env.getStateIds().ids();
         for (int sID : stateIds) {
             State s = env.gState(sID);
             List<Transition> actions = s.getOutTransitions();
             if (!actions.isEmpty()) {
                 policy.put(s, actions.get(0)); // Initial random policy
                 vValues.put(s, 0.0);
+                policyPredecessors.computeIfAbsent(actions.get(0).getDestination(), k -> new HashSet<>()).add(s);
+                markDirty(s);
             }
         }
 
         int iteration = 0;
         boolean policyStable;
         do {
-            policyEvaluation();
+            long backups = exactPolicyEvaluation ? solvePolicy() : policyEvaluation();
             policyStable = policyImprovement();
             iteration++;
-            System.out.println("Iteration: " + iteration + " | policy stable: " + policyStable);
-        } while (!policyStable && iteration < maxIterations);
+            System.out.println("Iteration: " + iteration + " | policy stable: " + policyStable + " | backups: " + backups);
+        } while (!policyStable && iteration < maxIterations && !budget.isExhausted());
+        if ((!policyStable || evaluationCutShort) && budget.isExhausted()) {
+            System.out.println("Budget exhausted after iteration " + iteration + ".");
+        }
         long endTime = System.nanoTime();
         long duration = endTime - startTime; 
         double durationInSeconds = duration / 1_000_000_000.0;
         System.out.println("Execution time: " + durationInSeconds + " seconds");
     }
 
-    private void policyEvaluation() {
-        double delta;
-        do {
-            delta = 0.0;
-            for (Map.Entry<State, Transition> entry : policy.entrySet()) {
-                State s = entry.getKey();
-                Transition t = entry.getValue();
-                State sPrime = t.getDestination();
-                double reward = env.reward(s, t, sPrime);
-                double newV = reward + gamma * vValues.getOrDefault(sPrime, 0.0);
-                delta = Math.max(delta, Math.abs(vValues.get(s) - newV));
-                vValues.put(s, newV);
+    /**
+     * Backs up the dirty states until none is left. A state notifies its
+     * predecessors when its value has moved by more than teta since its
+     * last notification. Stops early, keeping the values computed so far,
+     * once the budget is exhausted.
+     *
+     * @return the number of backups performed
+     */
+    private long policyEvaluation() {
+        long backups = 0;
+        evaluationCutShort = false;
+        while (!dirty.isEmpty()) {
+            if (backups % BUDGET_CHECK_INTERVAL == BUDGET_CHECK_INTERVAL - 1 && budget.isExhausted()) {
+                evaluationCutShort = true;
+                break;
+            }
+            State s = dirty.poll();
+            queued.remove(s);
+            Transition t = policy.get(s);
+            State sPrime = t.getDestination();
+            double reward = env.reward(s, t, sPrime);
+            double newV = reward + gamma * vValues.getOrDefault(sPrime, 0.0);
+            vValues.put(s, newV);
+            backups++;
+            if (Math.abs(newV - propagated.getOrDefault(s, 0.0)) > teta) {
+                propagated.put(s, newV);
+                for (State sPred : policyPredecessors.getOrDefault(s, Collections.emptySet())) {
+                    markDirty(sPred);
+                }
             }
-        } while (delta > teta);
+        }
+        return backups;
+    }
+
+    /**
+     * Exact evaluation of the policy (see {@link PolicyGraphSolver}); the
+     * dirty states are all solved at once.
+     *
+     * @return the number of states evaluated
+     */
+    private long solvePolicy() {
+        PolicyGraphSolver.solve(env, policy, gamma, vValues);
+        propagated.putAll(vValues); // every state is consistent with its successor
+        dirty.clear();
+        queued.clear();
+        return policy.size();
+    }
+
+    private void markDirty(State s) {
+        if (queued.add(s)) {
+            dirty.add(s);
+        }
     }
 
     private boolean policyImprovement() {
@@ -95,14 +220,171 @@ public class PolicyIteration extends Agent {
 
             if (bestAction != null && !bestAction.equals(oldAction)) {
                 policy.put(s, bestAction);
+                policyPredecessors.get(oldAction.getDestination()).remove(s);
+                policyPredecessors.computeIfAbsent(bestAction.getDestination(), k -> new HashSet<>()).add(s);
+                markDirty(s);
                 stable = false;
             }
         }
         return stable;
     }
 
+    private void learnCompiled(CompiledMdp mdp) {
+        this.mdp = mdp;
+        int n = mdp.size();
+        int[] offsets = mdp.offsets();
+        this.v = new double[n];
+        this.pi = new int[n];
+        this.q = new double[mdp.transitionCount()];
+        this.eliminator = actionElimination ? new ActionEliminator(mdp) : null;
+        this.worklist = new int[n];
+        this.worklistHead = 0;
+        this.worklistSize = 0;
+        this.inWorklist = new boolean[n];
+        this.lastPropagated = new double[n];
+        mdp.predecessorOffsets(); // reverse CSR, used to propagate value changes
+        System.out.println("Start learning");long startTime = System.nanoTime();
+
+        for (int s = 0; s < n; s++) {
+            pi[s] = offsets[s] < offsets[s + 1] ? offsets[s] : -1; // Initial policy: first action
+            if (pi[s] >= 0) {
+                enqueue(s);
+            }
+        }
+
+        int iteration = 0;
+        boolean policyStable;
+        do {
+            long backups = exactPolicyEvaluation ? compiledSolvePolicy() : compiledPolicyEvaluation();
+            policyStable = compiledPolicyImprovement();
+            iteration++;
+            System.out.println("Iteration: " + iteration + " | policy stable: " + policyStable + " | backups: " + backups);
+        } while (!policyStable && iteration < maxIterations && !budget.isExhausted());
+        if ((!policyStable || evaluationCutShort) && budget.isExhausted()) {
+            System.out.println("Budget exhausted after iteration " + iteration + ".");
+        }
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time: " + durationInSeconds + " seconds");
+        if (eliminator != null) {
+            System.out.println("Actions eliminated: " + eliminator.eliminated() + " of " + eliminator.total());
+        }
+    }
+
+    /**
+     * Backs up the states of the worklist until it is empty. A state
+     * notifies its predecessors when its value has moved by more than teta
+     * since its last notification; a predecessor edge only matters when it
+     * is the policy's transition of its source. Stops early, keeping the
+     * values computed so far, once the budget is exhausted.
+     *
+     * @return the number of backups performed
+     */
+    private long compiledPolicyEvaluation() {
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        int[] predOffsets = mdp.predecessorOffsets();
+        int[] predEdges = mdp.predecessorEdges();
+        int[] sources = mdp.sources();
+        long backups = 0;
+        evaluationCutShort = false;
+        while (worklistSize > 0) {
+            if (backups % BUDGET_CHECK_INTERVAL == BUDGET_CHECK_INTERVAL - 1 && budget.isExhausted()) {
+                evaluationCutShort = true;
+                break;
+            }
+            int s = worklist[worklistHead];
+            worklistHead = (worklistHead + 1) % worklist.length;
+            worklistSize--;
+            inWorklist[s] = false;
+
+            int e = pi[s];
+            double newV = rewards[e] + gamma * v[targets[e]];
+            v[s] = newV;
+            backups++;
+            if (Math.abs(newV - lastPropagated[s]) > teta) {
+                lastPropagated[s] = newV;
+                for (int k = predOffsets[s]; k < predOffsets[s + 1]; k++) {
+                    int edge = predEdges[k];
+                    if (pi[sources[edge]] == edge) {
+                        enqueue(sources[edge]);
+                    }
+                }
+            }
+        }
+        return backups;
+    }
+
+    /**
+     * Exact evaluation of the policy (see {@link PolicyGraphSolver}); the
+     * worklist is emptied.
+     *
+     * @return the number of states evaluated
+     */
+    private long compiledSolvePolicy() {
+        PolicyGraphSolver.solve(mdp, pi, gamma, v);
+        System.arraycopy(v, 0, lastPropagated, 0, v.length); // every state is consistent with its successor
+        while (worklistSize > 0) {
+            inWorklist[worklist[worklistHead]] = false;
+            worklistHead = (worklistHead + 1) % worklist.length;
+            worklistSize--;
+        }
+        return pi.length;
+    }
+
+    private void enqueue(int s) {
+        if (!inWorklist[s]) {
+            inWorklist[s] = true;
+            worklist[(worklistHead + worklistSize) % worklist.length] = s;
+            worklistSize++;
+        }
+    }
+
+    private boolean compiledPolicyImprovement() {
+        int[] offsets = mdp.offsets();
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        boolean stable = true;
+        double cMin = 0.0; // range of TV - V, terminal states included
+        double cMax = 0.0;
+        for (int s = 0; s < pi.length; s++) {
+            if (pi[s] < 0) continue;
+            double maxQ = Double.NEGATIVE_INFINITY;
+            int best = -1;
+            int from = eliminator != null ? eliminator.begin(s) : offsets[s];
+            int to = eliminator != null ? eliminator.end(s) : offsets[s + 1];
+            for (int k = from; k < to; k++) {
+                int e = eliminator != null ? eliminator.edge(k) : k;
+                q[e] = rewards[e] + gamma * v[targets[e]];
+                if (q[e] > maxQ) {
+                    maxQ = q[e];
+                    best = e;
+                }
+            }
+            cMin = Math.min(cMin, maxQ - v[s]);
+            cMax = Math.max(cMax, maxQ - v[s]);
+            if (best != pi[s]) {
+                pi[s] = best;
+                enqueue(s);
+                stable = false;
+            }
+        }
+        if (eliminator != null) {
+            // The greedy transition is never pruned: q[pi[s]] is the best Q-value
+            double gap = ActionEliminator.spanGap(gamma, cMin, cMax);
+            for (int s = 0; s < pi.length; s++) {
+                if (pi[s] >= 0) {
+                    eliminator.prune(s, q, q[pi[s]], gap);
+                }
+            }
+        }
+        return stable;
+    }
+
     @Override
     public Map<Transition, Double> getQValues(State s) {
+        if (mdp != null) {
+            return mdp.valuesOf(s, q);
+        }
         return qValues.getOrDefault(s, Collections.emptyMap());
     }
 }
@@ -4,10 +4,15 @@ import de.prob.statespace.State;
 import de.prob.statespace.Transition;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
 
 import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.SolverMode;
+import fr.polytech.mnia.Environment.CompiledMdp;
 import fr.polytech.mnia.Environment.Environment;
+import fr.polytech.mnia.Environment.ExplorationBatch;
 import fr.polytech.mnia.Environment.ExplorationStrategy;
+import fr.polytech.mnia.Environment.ExplorationStream;
 
 /**
  * An agent that implements a prioritized sweeping variant of
@@ -20,15 +25,25 @@ import fr.polytech.mnia.Environment.ExplorationStrategy;
  *   error(s) = | V(s) - max_a [ R(s,a,s') + gamma * V(s') ] |
  *
  * At each step, the state with the highest error is updated first,
- * and its predecessors are reinserted into the queue with updated
- * priorities. This focuses computation on states where the value
- * function is most inconsistent with the Bellman equation.
+ * and the errors of its predecessors are recomputed and updated in the
+ * queue. This focuses computation on states where the value function is
+ * most inconsistent with the Bellman equation.
+ *
+ * The queue is an {@link IndexedMaxHeap} over dense state indices: each
+ * state appears at most once and its priority is always its current
+ * Bellman error, so a popped state is backed up without recomputing it.
  */
 public class PrioritizedValueIterationV1 extends Agent {
 
     /** Maximum number of state updates (pops from the priority queue). */
     private final int maxUpdates;
 
+    /** Maximum wait for the next explored level in STREAMING mode. */
+    private static final long STREAM_POLL_MILLIS = 100;
+
+    /** Updates performed after each explored level in STREAMING mode. */
+    private static final int STREAM_SWEEP_UPDATES = 1000;
+
     /** State-value function V(s). */
     private final Map<State, Double> vValues;
 
@@ -41,6 +56,18 @@ public class PrioritizedValueIterationV1 extends Agent {
     /** Predecessors of each state: for each s', a list of transitions (s,a)->s'. */
     private final Map<State, List<Transition>> predecessors;
 
+    /** Whether rewards come from {@link Environment#knownReward} (STREAMING, during exploration). */
+    private boolean knownRewardsOnly;
+
+    /** Dense index of each state in the queue (PROB and STREAMING modes). */
+    private final Map<State, Integer> stateIndex;
+    private final List<State> indexedStates;
+
+    /** Compiled model, V(s) and Q(s,a) arrays used in COMPILED mode. */
+    private CompiledMdp mdp;
+    private double[] v;
+    private double[] q;
+
     /**
      * Creates a Prioritized Value Iteration agent.
      *
@@ -59,17 +86,27 @@ public class PrioritizedValueIterationV1 extends Agent {
         this.qValues = new HashMap<>();
         this.outgoing = new HashMap<>();
         this.predecessors = new HashMap<>();
+        this.stateIndex = new HashMap<>();
+        this.indexedStates = new ArrayList<>();
     }
 
     @Override
     public void learn(ExplorationStrategy strategy) {
+        if (mode == SolverMode.COMPILED) {
+            learnCompiled(env.compiledModel(strategy));
+            return;
+        }
+        if (mode == SolverMode.STREAMING) {
+            learnStreaming();
+            return;
+        }
         // Full state-space construction via ProB
         env.explore(strategy);
         System.out.println("Start learning (Prioritized Value Iteration)");
         long startTime = System.nanoTime();
 
         // Collect all reachable states
-        Set<Integer> stateIds = env.getStateIds();
+        int[] stateIds = env.getStateIds().ids();
         List<State> states = new ArrayList<>();
         for (int sID : stateIds) {
             State s = env.gState(sID);
@@ -89,27 +126,134 @@ public class PrioritizedValueIterationV1 extends Agent {
             vValues.put(s, 0.0);
         }
 
-        // Priority queue of states, ordered by descending Bellman error
-        PriorityQueue<StatePriority> pq = new PriorityQueue<>(
-            Comparator.comparingDouble((StatePriority sp) -> sp.priority).reversed()
-        );
+        // Queue of states, ordered by descending Bellman error
+        IndexedMaxHeap pq = new IndexedMaxHeap(states.size());
 
         // Initial priorities: on first pass, we can compute
         // an initial Bellman error for each state
         for (State s : states) {
             double error = computeBellmanError(s);
             if (error > 0.0) {
-                pq.add(new StatePriority(s, error));
+                pq.set(indexOf(s), error);
             }
         }
 
+        int updates = sweep(pq, 0, maxUpdates);
+
+        long endTime = System.nanoTime();
+        double durationInSeconds = (endTime - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (Prioritized VI): " + durationInSeconds + " seconds");
+        System.out.println("Total updates performed: " + updates);
+    }
+
+    /**
+     * Streaming variant of {@link #learn(ExplorationStrategy)}: the state
+     * space is explored on a background thread, the graphs grow with each
+     * explored level and the queue is swept after each level; the final
+     * sweep runs once the exploration is over.
+     * <p>
+     * The ProB instance is left to the exploration: during the exploration
+     * errors and backups only use the rewards already tabulated
+     * ({@link Environment#knownReward}), and the learner blocks until the
+     * next level instead of polling. Once the exploration is over, every
+     * error is recomputed with all the rewards before the final sweep.
+     * </p>
+     *
+     * @throws CancellationException if interrupted while waiting for a level
+     */
+    private void learnStreaming() {
+        ExplorationStream stream = new ExplorationStream();
+        env.exploreAsync(stream);
+        System.out.println("Start learning (Prioritized Value Iteration)");
+        long startTime = System.nanoTime();
+
+        outgoing.clear();
+        predecessors.clear();
+        stateIndex.clear();
+        indexedStates.clear();
+        IndexedMaxHeap pq = new IndexedMaxHeap(1024);
+
         int updates = 0;
-        while (!pq.isEmpty() && updates < maxUpdates) {
-            StatePriority sp = pq.poll();
-            State s = sp.state;
+        knownRewardsOnly = true;
+        try {
+            while (!stream.isFinished()) {
+                List<ExplorationBatch> batches = stream.await(STREAM_POLL_MILLIS);
+                if (batches.isEmpty()) {
+                    continue; // no new level yet
+                }
+                for (ExplorationBatch batch : batches) {
+                    addToGraphs(batch);
+                    for (State s : batch.getStates()) {
+                        double error = computeBellmanError(s);
+                        if (error > 0.0) {
+                            pq.set(indexOf(s), error);
+                        }
+                    }
+                }
+                updates = sweep(pq, updates, Math.min(maxUpdates, updates + STREAM_SWEEP_UPDATES));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Streaming learning interrupted");
+            cancelled.initCause(e);
+            throw cancelled;
+        } finally {
+            knownRewardsOnly = false;
+        }
+
+        if (vValues.isEmpty()) {
+            System.out.println("No reachable states. Aborting learning.");
+            return;
+        }
+        System.out.println("Updates during exploration: " + updates);
+
+        // Errors and Q-values so far ignored the rewards not yet tabulated
+        qValues.clear();
+        for (State s : vValues.keySet()) {
+            double error = computeBellmanError(s);
+            if (error > 0.0) {
+                pq.set(indexOf(s), error);
+            } else {
+                pq.remove(indexOf(s));
+            }
+        }
+        updates = sweep(pq, updates, maxUpdates);
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (Prioritized VI): " + durationInSeconds + " seconds");
+        System.out.println("Total updates performed: " + updates);
+    }
 
-            // Recompute the current error; if it's below teta, skip update
-            double currentError = computeBellmanError(s);
+    /**
+     * Adds the states and transitions of an explored level to the outgoing
+     * and predecessor graphs, with V(s) = 0 for the new states.
+     */
+    private void addToGraphs(ExplorationBatch batch) {
+        for (State s : batch.getStates()) {
+            vValues.putIfAbsent(s, 0.0);
+        }
+        for (Transition t : batch.getTransitions()) {
+            outgoing.computeIfAbsent(t.getSource(), key -> new ArrayList<>()).add(t);
+            predecessors
+                .computeIfAbsent(t.getDestination(), key -> new ArrayList<>())
+                .add(t);
+        }
+    }
+
+    /**
+     * Pops states from the queue and backs them up until the queue is empty
+     * or the number of updates reaches the limit.
+     *
+     * @param pq      the queue of state indices ordered by Bellman error
+     * @param updates the number of updates already performed
+     * @param limit   the maximum total number of updates
+     * @return the total number of updates performed
+     */
+    private int sweep(IndexedMaxHeap pq, int updates, int limit) {
+        while (!pq.isEmpty() && updates < limit && !budget.isExhausted()) {
+            // The priority is the current error: skip the update if it's below teta
+            double currentError = pq.peekPriority();
+            State s = indexedStates.get(pq.poll());
             if (currentError < teta) {
                 continue;
             }
@@ -126,21 +270,30 @@ public class PrioritizedValueIterationV1 extends Agent {
                 System.out.println("Update " + updates + " | last delta: " + delta);
             }
 
-            // After updating s, propagate changes to its predecessors
+            // After updating s, refresh the errors of its predecessors
             List<Transition> preds = predecessors.getOrDefault(s, Collections.emptyList());
             for (Transition tPred : preds) {
-                State sPred = tPred.getSource();
-                double errPred = computeBellmanError(sPred);
+                int pred = indexOf(tPred.getSource());
+                double errPred = computeBellmanError(tPred.getSource());
                 if (errPred >= teta) {
-                    pq.add(new StatePriority(sPred, errPred));
+                    pq.set(pred, errPred);
+                } else {
+                    pq.remove(pred);
                 }
             }
         }
+        return updates;
+    }
 
-        long endTime = System.nanoTime();
-        double durationInSeconds = (endTime - startTime) / 1_000_000_000.0;
-        System.out.println("Execution time (Prioritized VI): " + durationInSeconds + " seconds");
-        System.out.println("Total updates performed: " + updates);
+    /** Returns the dense queue index of a state, assigning one on first use. */
+    private int indexOf(State s) {
+        Integer i = stateIndex.get(s);
+        if (i == null) {
+            i = indexedStates.size();
+            stateIndex.put(s, i);
+            indexedStates.add(s);
+        }
+        return i;
     }
 
     /**
@@ -149,6 +302,8 @@ public class PrioritizedValueIterationV1 extends Agent {
     private void buildGraphs(List<State> states) {
         outgoing.clear();
         predecessors.clear();
+        stateIndex.clear();
+        indexedStates.clear();
 
         for (State s : states) {
             List<Transition> outs = s.getOutTransitions();
@@ -179,14 +334,17 @@ public class PrioritizedValueIterationV1 extends Agent {
 
         for (Transition t : actions) {
             State sPrime = t.getDestination();
-            double reward = env.reward(s, t, sPrime);
+            double reward = reward(s, t, sPrime);
+            if (Double.isNaN(reward)) {
+                continue; // not tabulated yet
+            }
             double q = reward + gamma * vValues.getOrDefault(sPrime, 0.0);
             if (q > maxQ) {
                 maxQ = q;
             }
         }
 
-        return Math.abs(oldV - maxQ);
+        return maxQ == Double.NEGATIVE_INFINITY ? 0.0 : Math.abs(oldV - maxQ);
     }
 
     /**
@@ -207,7 +365,10 @@ public class PrioritizedValueIterationV1 extends Agent {
 
         for (Transition t : actions) {
             State sPrime = t.getDestination();
-            double reward = env.reward(s, t, sPrime);
+            double reward = reward(s, t, sPrime);
+            if (Double.isNaN(reward)) {
+                continue; // not tabulated yet
+            }
             double q = reward + gamma * vValues.getOrDefault(sPrime, 0.0);
             qForState.put(t, q);
             if (q > maxQ) {
@@ -215,24 +376,116 @@ public class PrioritizedValueIterationV1 extends Agent {
             }
         }
 
-        return maxQ;
+        return maxQ == Double.NEGATIVE_INFINITY ? vValues.getOrDefault(s, 0.0) : maxQ;
     }
 
-    @Override
-    public Map<Transition, Double> getQValues(State s) {
-        return qValues.getOrDefault(s, Collections.emptyMap());
+    /** Reward of a transition, NaN when only tabulated rewards may be used and it is not yet known. */
+    private double reward(State s, Transition t, State sPrime) {
+        return knownRewardsOnly ? env.knownReward(s, t, sPrime) : env.reward(s, t, sPrime);
     }
 
     /**
-     * Internal structure for priority queue entries.
+     * Same prioritized sweeping as {@link #learn(ExplorationStrategy)}, over the
+     * compiled arrays; predecessors come from the model's reverse CSR.
      */
-    private static class StatePriority {
-        final State state;
-        final double priority;
+    private void learnCompiled(CompiledMdp mdp) {
+        this.mdp = mdp;
+        int n = mdp.size();
+        int[] predOffsets = mdp.predecessorOffsets();
+        int[] predEdges = mdp.predecessorEdges();
+        int[] sources = mdp.sources();
+        this.v = new double[n];
+        this.q = new double[mdp.transitionCount()];
+        System.out.println("Start learning (Prioritized Value Iteration)");
+        long startTime = System.nanoTime();
+
+        if (n == 0) {
+            System.out.println("No reachable states. Aborting learning.");
+            return;
+        }
+
+        IndexedMaxHeap pq = new IndexedMaxHeap(n);
+
+        for (int s = 0; s < n; s++) {
+            double error = compiledBellmanError(s);
+            if (error > 0.0) {
+                pq.set(s, error);
+            }
+        }
+
+        int updates = 0;
+        while (!pq.isEmpty() && updates < maxUpdates && !budget.isExhausted()) {
+            double currentError = pq.peekPriority();
+            int s = pq.poll();
+            if (currentError < teta) {
+                continue;
+            }
+
+            double oldV = v[s];
+            v[s] = compiledBellmanBackup(s);
+
+            double delta = Math.abs(oldV - v[s]);
+            updates++;
+
+            if (updates % 100 == 0) {
+                System.out.println("Update " + updates + " | last delta: " + delta);
+            }
+
+            for (int k = predOffsets[s]; k < predOffsets[s + 1]; k++) {
+                int sPred = sources[predEdges[k]];
+                double errPred = compiledBellmanError(sPred);
+                if (errPred >= teta) {
+                    pq.set(sPred, errPred);
+                } else {
+                    pq.remove(sPred);
+                }
+            }
+        }
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (Prioritized VI): " + durationInSeconds + " seconds");
+        System.out.println("Total updates performed: " + updates);
+    }
+
+    private double compiledBellmanError(int s) {
+        int[] offsets = mdp.offsets();
+        if (offsets[s] == offsets[s + 1]) {
+            return 0.0;
+        }
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        double maxQ = Double.NEGATIVE_INFINITY;
+        for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+            double qValue = rewards[e] + gamma * v[targets[e]];
+            if (qValue > maxQ) {
+                maxQ = qValue;
+            }
+        }
+        return Math.abs(v[s] - maxQ);
+    }
+
+    private double compiledBellmanBackup(int s) {
+        int[] offsets = mdp.offsets();
+        if (offsets[s] == offsets[s + 1]) {
+            return v[s];
+        }
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        double maxQ = Double.NEGATIVE_INFINITY;
+        for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+            q[e] = rewards[e] + gamma * v[targets[e]];
+            if (q[e] > maxQ) {
+                maxQ = q[e];
+            }
+        }
+        return maxQ;
+    }
 
-        StatePriority(State state, double priority) {
-            this.state = state;
-            this.priority = priority;
+    @Override
+    public Map<Transition, Double> getQValues(State s) {
+        if (mdp != null) {
+            return mdp.valuesOf(s, q);
         }
+        return qValues.getOrDefault(s, Collections.emptyMap());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,137 @@
+package fr.polytech.mnia.mbrl.offline;
+
+import java.util.Collections;
+import java.util.Map;
+
+import de.prob.statespace.State;
+import de.prob.statespace.Transition;
+
+import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.Environment.CompiledMdp;
+import fr.polytech.mnia.Environment.Environment;
+import fr.polytech.mnia.Environment.ExplorationStrategy;
+import fr.polytech.mnia.Environment.StronglyConnectedComponents;
+
+/**
+ * Topological Value Iteration: solves the model one strongly connected
+ * component at a time, in reverse topological order.
+ * <p>
+ * When a component is solved, the values of all the states it can reach
+ * outside itself are already final. A state that is not on a cycle is
+ * therefore backed up exactly once, and sweeps are only repeated inside
+ * components with cycles, until their largest change falls below teta.
+ * On an acyclic model (e.g. Tic-Tac-Toe, where every move fills a square)
+ * the optimal values are obtained in a single pass, in O(|S| + |T|).
+ * </p>
+ * Backups use the Bellman optimality equation
+ * V(s) = max_a [ R(s,a,s') + gamma * V(s') ], with V(s) = 0 for states
+ * without outgoing transitions. The agent always works on the compiled
+ * model (see {@link CompiledMdp}).
+ */
+public class TopologicalValueIteration extends Agent {
+
+    /** Maximum number of sweeps inside a single component with cycles. */
+    private final int maxIterations;
+
+    /** Compiled model, value and per-transition Q arrays. */
+    private CompiledMdp mdp;
+    private double[] v;
+    private double[] q;
+
+    /**
+     * Constructs a Topological Value Iteration agent.
+     *
+     * @param env the environment in which the agent learns
+     * @param gamma the discount factor (typically between 0 and 1)
+     * @param teta the convergence threshold inside components with cycles
+     * @param maxIterations the maximum number of sweeps per component with cycles
+     */
+    public TopologicalValueIteration(Environment env, double gamma, double teta, int maxIterations) {
+        super(env, gamma, teta);
+        this.maxIterations = maxIterations;
+    }
+
+    @Override
+    public void learn(ExplorationStrategy eStrategy) {
+        this.mdp = env.compiledModel(eStrategy);
+        this.v = new double[mdp.size()];
+        this.q = new double[mdp.transitionCount()];
+
+        System.out.println("Start learning (Topological Value Iteration)");
+        long startTime = System.nanoTime();
+
+        StronglyConnectedComponents sccs = StronglyConnectedComponents.of(mdp);
+        int[] offsets = sccs.offsets();
+        int[] members = sccs.states();
+        int largest = 0;
+        for (int c = 0; c < sccs.count(); c++) {
+            largest = Math.max(largest, offsets[c + 1] - offsets[c]);
+        }
+        System.out.println("Components: " + sccs.count() + " | with cycles: " + sccs.nonTrivialCount()
+                + " | largest: " + largest + (sccs.isAcyclic() ? " | acyclic" : ""));
+
+        long updates = 0;
+        int cutShort = 0; // components left above teta because the budget ran out
+        for (int c = 0; c < sccs.count(); c++) {
+            if (sccs.isTrivial(c)) {
+                backup(members[offsets[c]]);
+                updates++;
+                continue;
+            }
+            // Gauss-Seidel sweeps restricted to the component
+            int iteration = 0;
+            double delta;
+            do {
+                delta = 0.0;
+                for (int k = offsets[c]; k < offsets[c + 1]; k++) {
+                    delta = Math.max(delta, backup(members[k]));
+                }
+                updates += offsets[c + 1] - offsets[c];
+                iteration++;
+            } while (delta > teta && iteration < maxIterations && !budget.isExhausted());
+            if (delta > teta && iteration < maxIterations) {
+                cutShort++;
+            }
+        }
+        if (cutShort > 0) {
+            System.out.println("Budget exhausted: " + cutShort
+                    + " components with cycles were swept once from the deadline on.");
+        }
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time: " + durationInSeconds + " seconds");
+        System.out.println("Total updates performed: " + updates);
+    }
+
+    /**
+     * Bellman backup of a single state.
+     *
+     * @return the absolute change of V(s)
+     */
+    private double backup(int s) {
+        int[] offsets = mdp.offsets();
+        if (offsets[s] == offsets[s + 1]) {
+            return 0.0;
+        }
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        double maxQ = Double.NEGATIVE_INFINITY;
+        for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+            q[e] = rewards[e] + gamma * v[targets[e]];
+            if (q[e] > maxQ) {
+                maxQ = q[e];
+            }
+        }
+        double diff = Math.abs(v[s] - maxQ);
+        v[s] = maxQ;
+        return diff;
+    }
+
+    @Override
+    public Map<Transition, Double> getQValues(State s) {
+        if (this.mdp == null) {
+            return Collections.emptyMap();
+        }
+        return this.mdp.valuesOf(s, this.q);
+    }
+}
@@ -7,8 +7,15 @@ import de.prob.statespace.State;
 import de.prob.statespace.Transition;
 
 import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.ActionEliminationAware;
+import fr.polytech.mnia.KernelAware;
+import fr.polytech.mnia.SolverMode;
+import fr.polytech.mnia.Environment.CompiledMdp;
 import fr.polytech.mnia.Environment.Environment;
 import fr.polytech.mnia.Environment.ExplorationStrategy;
+import fr.polytech.mnia.mbrl.kernel.BellmanKernel;
+import fr.polytech.mnia.mbrl.kernel.BellmanKernels;
+import fr.polytech.mnia.mbrl.kernel.KernelType;
 
 /**
  * A reinforcement learning agent that performs Value Iteration to compute
@@ -20,7 +27,7 @@ import fr.polytech.mnia.Environment.ExplorationStrategy;
  *
  * @author [Akram Idani (akram.idani@univ-grenoble-alpes.fr)]
  */
-public class ValueIteration extends Agent {
+public class ValueIteration extends Agent implements KernelAware, ActionEliminationAware {
 
     /** Maximum number of iterations to perform during value iteration. */
     private int maxIterations;
@@ -31,6 +38,17 @@ public class ValueIteration extends Agent {
     /** Map from states to their action-value estimates Q(s,a). */
     protected Map<State, Map<Transition, Double>> qValues;    
 
+    /** Compiled model, value and per-transition Q arrays (COMPILED mode). */
+    private CompiledMdp mdp;
+    private double[] v;
+    private double[] q;
+
+    /** Bellman kernel of the compiled backups. */
+    private KernelType kernel = KernelType.SCALAR;
+
+    /** Whether compiled solving prunes transitions proved suboptimal. */
+    private boolean actionElimination = false;
+
     /**
      * Constructs a ValueIterationV1 agent with the given parameters.
      *
@@ -46,6 +64,26 @@ public class ValueIteration extends Agent {
         this.qValues = new HashMap<>();
     }    
 
+    @Override
+    public void setKernel(KernelType kernel) {
+        this.kernel = kernel;
+    }
+
+    @Override
+    public KernelType getKernel() {
+        return this.kernel;
+    }
+
+    @Override
+    public void setActionElimination(boolean actionElimination) {
+        this.actionElimination = actionElimination;
+    }
+
+    @Override
+    public boolean isActionElimination() {
+        return this.actionElimination;
+    }
+
     /**
      * Performs value iteration using the given exploration strategy.
      * The method explores the environment, then iteratively updates
@@ -56,6 +94,10 @@ public class ValueIteration extends Agent {
     @Override
     public void learn(ExplorationStrategy eStrategy) {
         
+        if (mode == SolverMode.COMPILED) {
+            learnCompiled(env.compiledModel(eStrategy));
+            return;
+        }
         this.env.explore(eStrategy);
 
         System.out.println("Start learning");long startTime = System.nanoTime();   
@@ -63,7 +105,7 @@ public class ValueIteration extends Agent {
         double delta;
         do {
             delta = 0.0;
-            for (int sID : env.getStateIds()) {
+            for (int sID : env.getStateIds().ids()) {
                 
                 State s = env.gState(sID);                
                 qValues.putIfAbsent(s, new HashMap<>());
@@ -92,7 +134,10 @@ public class ValueIteration extends Agent {
             }
             iteration++;
             System.out.println("Iteration: " + iteration + " | delta: " + delta);
-        } while (delta > teta && iteration < maxIterations);
+        } while (delta > teta && iteration < maxIterations && !budget.isExhausted());
+        if (delta > teta && budget.isExhausted()) {
+            System.out.println("Budget exhausted after iteration " + iteration + ".");
+        }
 
         long endTime = System.nanoTime();
         long duration = endTime - startTime; 
@@ -100,8 +145,83 @@ public class ValueIteration extends Agent {
         System.out.println("Execution time: " + durationInSeconds + " seconds");
     }
 
+    /**
+     * Same Gauss-Seidel sweeps as {@link #learn(ExplorationStrategy)}, run over
+     * the compiled CSR arrays without any ProB call. The Q-values and maxima
+     * of each state are computed by the selected {@link BellmanKernel}.
+     */
+    private void learnCompiled(CompiledMdp mdp) {
+        this.mdp = mdp;
+        int n = mdp.size();
+        int[] offsets = mdp.offsets();
+        this.v = new double[n];
+        this.q = new double[mdp.transitionCount()];
+        BellmanKernel bellman = BellmanKernels.create(mdp, kernel);
+        ActionEliminator eliminator = actionElimination ? new ActionEliminator(mdp) : null;
+
+        System.out.println("Start learning");long startTime = System.nanoTime();
+        int iteration = 0;
+        double delta = Double.POSITIVE_INFINITY;
+        do {
+            if (eliminator != null) {
+                delta = eliminationSweep(eliminator, delta);
+            } else {
+                delta = 0.0;
+                for (int s = 0; s < n; s++) {
+                    bellman.qValues(v, gamma, q, offsets[s], offsets[s + 1]);
+                    double maxQ = Math.max(v[s], bellman.max(q, offsets[s], offsets[s + 1]));
+                    delta = Math.max(delta, Math.abs(v[s] - maxQ));
+                    v[s] = maxQ;
+                }
+            }
+            iteration++;
+            System.out.println("Iteration: " + iteration + " | delta: " + delta);
+        } while (delta > teta && iteration < maxIterations && !budget.isExhausted());
+        if (delta > teta && budget.isExhausted()) {
+            System.out.println("Budget exhausted after iteration " + iteration + ".");
+        }
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time: " + durationInSeconds + " seconds");
+        if (eliminator != null) {
+            System.out.println("Actions eliminated: " + eliminator.eliminated() + " of " + eliminator.total());
+        }
+    }
+
+    /**
+     * One sweep over the transitions that may still be optimal. Values only
+     * increase from 0, so the previous delta bounds the distance to the fixed
+     * point (see {@link ActionEliminator#monotoneGap}). Pruned transitions
+     * keep their last Q-value.
+     *
+     * @return the largest value change of this sweep
+     */
+    private double eliminationSweep(ActionEliminator eliminator, double previousDelta) {
+        int[] targets = mdp.targets();
+        double[] rewards = mdp.rewards();
+        double gap = ActionEliminator.monotoneGap(gamma, previousDelta);
+        double delta = 0.0;
+        for (int s = 0; s < v.length; s++) {
+            double maxQ = v[s];
+            for (int k = eliminator.begin(s); k < eliminator.end(s); k++) {
+                int e = eliminator.edge(k);
+                q[e] = rewards[e] + gamma * v[targets[e]];
+                if (q[e] > maxQ) {
+                    maxQ = q[e];
+                }
+            }
+            eliminator.prune(s, q, maxQ, gap);
+            delta = Math.max(delta, Math.abs(v[s] - maxQ));
+            v[s] = maxQ;
+        }
+        return delta;
+    }
+
     @Override
     public Map<Transition, Double> getQValues(State s) {
+        if (this.mdp != null) {
+            return this.mdp.valuesOf(s, this.q);
+        }
         return this.qValues.getOrDefault(s, Collections.emptyMap());
     }    
 }
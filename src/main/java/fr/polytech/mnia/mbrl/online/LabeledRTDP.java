@@ -0,0 +1,258 @@
+package fr.polytech.mnia.mbrl.online;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.prob.statespace.State;
+import de.prob.statespace.Transition;
+import fr.polytech.mnia.Agent;
+import fr.polytech.mnia.Environment.Environment;
+import fr.polytech.mnia.Environment.ExplorationStrategy;
+import fr.polytech.mnia.Environment.StateIdSet;
+
+/**
+ * Labeled Real-Time Dynamic Programming (LRTDP).
+ *
+ *  inproceedings{bonet2003lrtdp,
+ *      title={Labeled RTDP: Improving the Convergence of Real-Time Dynamic Programming},
+ *      author={Bonet, Blai and Geffner, H{\'e}ctor},
+ *      booktitle={ICAPS},
+ *      year={2003}
+ *  }
+ *
+ * Plans from the initial state only: trials follow the greedy action from
+ * {@code env.gState()}, backing up V along the way, and ProB states are
+ * expanded lazily ({@code exploreIfNeeded}) when a trial or a labeling check
+ * reaches them. A state is labeled solved when the states reachable from it
+ * under the greedy policy all have a residual below teta; trials stop at
+ * solved states, and learning stops when the initial state is solved.
+ *
+ * No exhaustive exploration is required: only the states visited by greedy
+ * play are expanded. Unvisited states are valued with initialValue, which
+ * must be an upper bound on V* for the greedy policy to be optimal.
+ */
+public class LabeledRTDP extends Agent {
+
+    /* =========================
+     * Hyperparameters
+     * ========================= */
+    private final int maxTrials;
+    private final int maxTrialDepth;  // bound on the length of a trial (cycles)
+    private final double initialValue; // optimistic value of unvisited states
+
+    /* =========================
+     * Values, labels and rewards
+     * ========================= */
+    private final Map<Integer, Double> V = new HashMap<>();
+    private final StateIdSet solved = new StateIdSet();
+    private final Map<String, Double> rewards = new HashMap<>();
+
+    private int expanded;
+    private long backups;
+
+    public LabeledRTDP(Environment env,
+                       double gamma,
+                       double teta,
+                       int maxTrials,
+                       int maxTrialDepth,
+                       double initialValue) {
+        super(env, gamma, teta);
+        this.maxTrials = maxTrials;
+        this.maxTrialDepth = maxTrialDepth;
+        this.initialValue = initialValue;
+    }
+
+    @Override
+    public void learn(ExplorationStrategy strategy) {
+
+        // LRTDP does NOT require exhaustive exploration.
+        // We only need an initialized root state.
+        env.initialise();
+        State s0 = env.gState();
+        if (s0 == null) return;
+
+        System.out.println("Start learning (Labeled RTDP)");
+        long startTime = System.nanoTime();
+
+        int trial = 0;
+        while (!isSolved(s0) && trial < maxTrials && !budget.isExhausted()) {
+            runTrial(s0);
+            trial++;
+            if (trial % 100 == 0) {
+                System.out.println("Trial: " + trial + " | V(s0): " + value(s0)
+                        + " | expanded: " + expanded + " | solved: " + solved.size());
+            }
+        }
+
+        double durationInSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Execution time (LRTDP): " + durationInSeconds + " seconds");
+        System.out.println("Trials: " + trial + " | initial state solved: " + isSolved(s0)
+                + " | V(s0): " + value(s0) + " | expanded: " + expanded + " | solved: " + solved.size());
+        System.out.println("Total updates performed: " + backups);
+    }
+
+    /* =========================================================
+     * Trials
+     * ========================================================= */
+
+    /** Greedy trial from s0 until a solved or terminal state, then labeling back to s0. */
+    private void runTrial(State s0) {
+        Deque<State> visited = new ArrayDeque<>();
+        State s = s0;
+        while (!isSolved(s)) {
+            s = expand(s);
+            visited.push(s);
+            Transition a = greedyAction(s);
+            if (a == null || visited.size() >= maxTrialDepth) {
+                break;
+            }
+            update(s);
+            s = a.getDestination();
+        }
+
+        while (!visited.isEmpty()) {
+            if (!checkSolved(visited.pop())) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Labels s and the states reachable from it under the greedy policy as
+     * solved when none of them has a residual above teta; otherwise backs
+     * them up, deepest first.
+     */
+    private boolean checkSolved(State s) {
+        boolean rv = true;
+        Deque<State> open = new ArrayDeque<>();
+        List<State> closed = new ArrayList<>();
+        StateIdSet seen = new StateIdSet();
+        if (!isSolved(s)) {
+            open.push(s);
+            seen.add(id(s));
+        }
+
+        while (!open.isEmpty()) {
+            State u = expand(open.pop());
+            closed.add(u);
+            if (residual(u) > teta) {
+                rv = false;
+                continue;
+            }
+            Transition a = greedyAction(u);
+            if (a == null) continue;
+            State next = a.getDestination();
+            if (!isSolved(next) && seen.add(id(next))) {
+                open.push(next);
+            }
+        }
+
+        if (rv) {
+            for (State u : closed) {
+                solved.add(id(u));
+            }
+        } else {
+            for (int i = closed.size() - 1; i >= 0; i--) {
+                update(closed.get(i));
+            }
+        }
+        return rv;
+    }
+
+    /* =========================================================
+     * Bellman backups on expanded states
+     * ========================================================= */
+
+    private State expand(State s) {
+        if (!s.isExplored()) {
+            expanded++;
+        }
+        s = s.exploreIfNeeded();
+        env.addStateID(id(s));
+        if (s.getOutTransitions().isEmpty()) {
+            V.put(id(s), 0.0); // terminal state
+        }
+        return s;
+    }
+
+    private Transition greedyAction(State s) {
+        Transition best = null;
+        double bestQ = Double.NEGATIVE_INFINITY;
+        for (Transition a : s.getOutTransitions()) {
+            double q = qValue(s, a);
+            if (q > bestQ) {
+                bestQ = q;
+                best = a;
+            }
+        }
+        return best;
+    }
+
+    private double bestQ(State s) {
+        Transition a = greedyAction(s);
+        return a == null ? 0.0 : qValue(s, a);
+    }
+
+    private void update(State s) {
+        V.put(id(s), bestQ(s));
+        backups++;
+    }
+
+    private double residual(State s) {
+        return Math.abs(value(s) - bestQ(s));
+    }
+
+    private double qValue(State s, Transition a) {
+        State sPrime = a.getDestination();
+        Double r = rewards.get(a.getId());
+        if (r == null) {
+            r = env.reward(s, a, sPrime);
+            rewards.put(a.getId(), r);
+        }
+        return r + gamma * value(sPrime);
+    }
+
+    private double value(State s) {
+        return V.getOrDefault(id(s), initialValue);
+    }
+
+    private boolean isSolved(State s) {
+        return solved.contains(id(s));
+    }
+
+    private static int id(State s) {
+        return Integer.parseInt(s.getId());
+    }
+
+    /* =========================================================
+     * Access Q-values
+     * ========================================================= */
+    @Override
+    public Map<Transition, Double> getQValues(State s) {
+        if (s == null) return Collections.emptyMap();
+
+        s = s.exploreIfNeeded();
+        List<Transition> outs = s.getOutTransitions();
+        if (outs == null || outs.isEmpty()) return Collections.emptyMap();
+
+        Map<Transition, Double> res = new LinkedHashMap<>();
+        for (Transition a : outs) {
+            res.put(a, qValue(s, a));
+        }
+        return res;
+    }
+
+    /**
+     * @param s a state
+     * @return its current value, initialValue if it was never backed up
+     */
+    public double getValue(State s) {
+        return s == null ? 0.0 : value(s);
+    }
+}